@@ -1,12 +1,14 @@
 package es.diegosr.keycloak_scim_outbound;
 
-import es.diegosr.keycloak_scim_outbound.http.ScimClient;
-import es.diegosr.keycloak_scim_outbound.ui.ScimTargetProviderFactory;
-import es.diegosr.keycloak_scim_outbound.util.ScimMapper;
+import es.diegosr.keycloak_scim_outbound.dispatch.ScimAfterCommitTransaction;
+import es.diegosr.keycloak_scim_outbound.dispatch.ScimDispatcher;
+import es.diegosr.keycloak_scim_outbound.dispatch.ScimJob;
+import es.diegosr.keycloak_scim_outbound.dispatch.ScimProvisioner;
+import es.diegosr.keycloak_scim_outbound.ui.ScimTarget;
+import es.diegosr.keycloak_scim_outbound.ui.ScimTargetRegistry;
+import es.diegosr.keycloak_scim_outbound.util.ExpiringCache;
+import es.diegosr.keycloak_scim_outbound.util.ScimUser;
 
-import static es.diegosr.keycloak_scim_outbound.ui.ScimTargetProviderFactory.*;
-
-import org.keycloak.component.ComponentModel;
 import org.keycloak.events.Event;
 import org.keycloak.events.EventListenerProvider;
 import org.keycloak.events.EventType;
@@ -15,12 +17,10 @@ import org.keycloak.events.admin.OperationType;
 import org.keycloak.events.admin.ResourceType;
 import org.keycloak.models.*;
 
-import java.time.Instant;
 import java.util.EnumSet;
-import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Event listener that pushes user lifecycle changes (create/update/delete)
@@ -30,9 +30,20 @@ import java.util.concurrent.ConcurrentHashMap;
  *  - User events: REGISTER, UPDATE_PROFILE, UPDATE_EMAIL, UPDATE_CREDENTIAL(password), DELETE_ACCOUNT
  *  - Admin events: CREATE/UPDATE/DELETE on ResourceType.USER
  *  - Group membership events (ResourceType.GROUP_MEMBERSHIP) to drive provisioning when filterGroup is set
+ *
+ * Targets come precompiled from the node-wide {@link ScimTargetRegistry}; group admin events
+ * invalidate it, since filter groups are resolved to ids.
+ *
+ * The listener only resolves targets and snapshots the user; the SCIM calls
+ * themselves are queued on the node-wide {@link ScimDispatcher} once the
+ * session transaction commits.
  */
 public class ScimEventListenerProvider implements EventListenerProvider {
     private final KeycloakSession session;
+    private final ScimDispatcher dispatcher;
+    private final ScimTargetRegistry targets;
+    /** Lazily enlisted on the first job of this session. */
+    private ScimAfterCommitTransaction afterCommit;
 
     private static final Set<EventType> USER_EVENTS_OF_INTEREST = EnumSet.of(
             EventType.REGISTER,
@@ -42,12 +53,15 @@ public class ScimEventListenerProvider implements EventListenerProvider {
             EventType.DELETE_ACCOUNT
     );
 
-    /** Debounce map to avoid duplicated pushes when KC emits both user+admin events. */
-    private final ConcurrentHashMap<String, Long> debounce = new ConcurrentHashMap<>();
-    private static final long DEBOUNCE_MS = 2000;
+    /** Node-wide debounce window (owned by the factory) to avoid duplicated pushes when KC emits both user+admin events. */
+    private final ExpiringCache<String, Boolean> debounce;
 
-    public ScimEventListenerProvider(KeycloakSession session) {
+    public ScimEventListenerProvider(KeycloakSession session, ScimDispatcher dispatcher, ScimTargetRegistry targets,
+                                     ExpiringCache<String, Boolean> debounce) {
         this.session = session;
+        this.dispatcher = dispatcher;
+        this.targets = targets;
+        this.debounce = debounce;
     }
 
     /* ===== User events ===== */
@@ -115,58 +129,45 @@ public class ScimEventListenerProvider implements EventListenerProvider {
             }
 
             // Para cada target SCIM del realm: actuar solo si su filterGroup coincide
-            final List<ComponentModel> targets = realm.getComponentsStream()
-                    .filter(c -> ScimTargetProviderFactory.ID.equals(c.getProviderId()))
-                    .toList();
-
-            for (ComponentModel t : targets) {
-                final String cfgGroup = ScimTargetProviderFactory.get(t, ScimTargetProviderFactory.CFG_FILTER_GROUP, null);
-                if (cfgGroup == null || cfgGroup.isBlank() || !cfgGroup.equals(groupName)) continue;
-
-                final String base  = ScimTargetProviderFactory.get(t, ScimTargetProviderFactory.CFG_BASE_URL, null);
-                final String token = ScimTargetProviderFactory.get(t, ScimTargetProviderFactory.CFG_TOKEN, null);
-                if (base == null || token == null) {
-                    logErr("SCIM", t.getName(), "Incomplete configuration (baseUrl/token). Skipping membership event.");
+            for (ScimTarget t : targets.targets(session, realm)) {
+                if (!t.filtered() || !t.filterGroupIds().contains(groupId)) continue;
+
+                if (!t.complete()) {
+                    logErr("SCIM", t.name(), "Incomplete configuration (baseUrl/token). Skipping membership event.");
                     continue;
                 }
 
-                final String scimUserName = computeScimUserName(t, user, username);
+                final String scimUserName = t.scimUserName(user, username);
                 if (scimUserName == null || scimUserName.isBlank()) {
-                    logErr("SCIM", t.getName(), "Cannot resolve SCIM userName for user=%s. Skipping membership event.", username);
+                    logErr("SCIM", t.name(), "Cannot resolve SCIM userName for user=%s. Skipping membership event.", username);
                     continue;
                 }
 
-                final ScimClient client = new ScimClient(base, token);
                 final OperationType op  = adminEvent.getOperationType();
-                final String debounceKey = "GM:" + realm.getId() + ":" + userId + ":" + groupId + ":" + op;
-                final long now = java.time.Instant.now().toEpochMilli();
-                final Long last = debounce.put(debounceKey, now);
-                if (last != null && (now - last) < DEBOUNCE_MS) continue;
-
-                try {
-                    switch (op) {
-                        case CREATE -> { // user ADDED to group
-                            boolean changed = upsertUser(client, user, scimUserName);
-                            logInfo("SCIM", t.getName(), "GROUP ADD user=%s group=%s -> %s",
-                                    scimUserName, groupName, changed ? "OK" : "NO-OP");
-                        }
-                        case DELETE -> { // user REMOVED from group
-                            deactivateUser(client, scimUserName);
-                            logInfo("SCIM", t.getName(), "GROUP REMOVE user=%s group=%s -> OK",
-                                    scimUserName, groupName);
-                        }
-                        default -> {
-                            // ignore UPDATE/others
-                        }
+                final String debounceKey = "GM:" + realm.getId() + ":" + t.id() + ":" + userId + ":" + groupId + ":" + op;
+                if (debounced(debounceKey)) continue;
+
+                switch (op) {
+                    case CREATE -> // user ADDED to group
+                            enqueue(job(ScimJob.Action.CREATE, "GROUP ADD group=" + groupName,
+                                    realm, t, userId, scimUserName, user, ScimUser.of(user, scimUserName)));
+                    case DELETE -> // user REMOVED from group
+                            enqueue(job(ScimJob.Action.DELETE, "GROUP REMOVE group=" + groupName,
+                                    realm, t, userId, scimUserName, user, ScimUser.of(user, scimUserName)));
+                    default -> {
+                        // ignore UPDATE/others
                     }
-                } catch (Exception e) {
-                    logErr("SCIM", t.getName(), "GROUP %s user=%s group=%s ERROR: %s",
-                            op, scimUserName, groupName, e.getMessage());
                 }
             }
             return; // membership handled
         }
 
+        // Groups created, renamed or removed: filter groups are compiled to ids
+        if (adminEvent.getResourceType() == ResourceType.GROUP) {
+            targets.invalidate(session, adminEvent.getRealmId());
+            return;
+        }
+
         // 2) USER CRUD EVENTS
         if (adminEvent.getResourceType() == ResourceType.USER) {
             final RealmModel realm = session.realms().getRealm(adminEvent.getRealmId());
@@ -192,114 +193,89 @@ public class ScimEventListenerProvider implements EventListenerProvider {
     /* ===== Core dispatch ===== */
 
     private void dispatch(String action, RealmModel realm, String userId, String username, UserModel user, Map<String,String> details) {
-        // Debounce to reduce double delivery (user event + admin event)
-        String key = realm.getId() + ":" + action + ":" + userId;
-        long now = Instant.now().toEpochMilli();
-        Long last = debounce.put(key, now);
-        if (last != null && (now - last) < DEBOUNCE_MS) return;
-
-        List<ComponentModel> targets = realm.getComponentsStream()
-                .filter(c -> ScimTargetProviderFactory.ID.equals(c.getProviderId()))
-                .toList();
+        // Debounce to reduce double delivery (user event + admin event).
+        // The key carries the user state, so two real edits in a row are never collapsed here.
+        String key = realm.getId() + ":" + action + ":" + userId + ":" + stateHash(user);
+        if (debounced(key)) return;
 
-        for (ComponentModel t : targets) {
+        for (ScimTarget t : targets.targets(session, realm)) {
             handleTarget(t, action, realm, userId, username, user);
         }
     }
 
-    private void handleTarget(ComponentModel t, String action, RealmModel realm, String userId, String username, UserModel user) {
-        final String base   = get(t, CFG_BASE_URL, null);
-        final String token  = get(t, CFG_TOKEN, null);
-        final String group  = get(t, CFG_FILTER_GROUP, null);
-
-        if (base == null || token == null) {
-            logErr("SCIM", t.getName(), "Incomplete configuration (baseUrl/token). Skipping.");
+    private void handleTarget(ScimTarget t, String action, RealmModel realm, String userId, String username, UserModel user) {
+        if (!t.complete()) {
+            logErr("SCIM", t.name(), "Incomplete configuration (baseUrl/token). Skipping.");
             return;
         }
 
-        final String scimUserName = computeScimUserName(t, user, username);
+        final String scimUserName = t.scimUserName(user, username);
         if (scimUserName == null || scimUserName.isBlank()) {
-            logErr("SCIM", t.getName(), "Could not resolve SCIM 'userName' for user=%s. Skipping.", username);
+            logErr("SCIM", t.name(), "Could not resolve SCIM 'userName' for user=%s. Skipping.", username);
             return;
         }
 
-        if (!"DELETE".equals(action) && group != null && !group.isBlank()) {
+        if (!"DELETE".equals(action) && t.filtered()) {
             if (user == null) {
-                logInfo("SCIM", t.getName(), "User model not found; skipping due to group filter.");
+                logInfo("SCIM", t.name(), "User model not found; skipping due to group filter.");
                 return;
             }
-            boolean inGroup = user.getGroupsStream().anyMatch(g -> g.getName().equals(group));
-            if (!inGroup) {
-                logInfo("SCIM", t.getName(), "User %s does not belong to group '%s'. Skipping.", username, group);
+            if (!t.inFilterGroup(user)) {
+                logInfo("SCIM", t.name(), "User %s does not belong to group '%s'. Skipping.", username, t.filterGroup());
                 return;
             }
         }
 
-        ScimClient client = new ScimClient(base, token);
-
-        try {
-            boolean changed = switch (action) {
-                case "CREATE", "UPDATE" -> upsertUser(client, user, scimUserName);
-                case "DELETE" -> { deactivateUser(client, scimUserName); yield true; }
-                default -> false;
-            };
-
-            if (changed) {
-                logInfo("SCIM", t.getName(), "%s targetUserName=%s realm=%s OK", action, scimUserName, realm.getName());
-            } else {
-                logInfo("SCIM", t.getName(), "%s targetUserName=%s realm=%s NO-OP (not found / not changed)", action, scimUserName, realm.getName());
-            }
-        } catch (Exception e) {
-            logErr("SCIM", t.getName(), "%s targetUserName=%s ERROR: %s", action, scimUserName, e.getMessage());
-        }
+        enqueue(job(ScimJob.Action.valueOf(action), action, realm, t, userId, scimUserName,
+                user, ScimUser.of(user, scimUserName)));
     }
 
-    // Resolve SCIM userName from strategy
-    private String computeScimUserName(ComponentModel t, UserModel user, String fallbackUsername) {
-        String strategy = get(t, CFG_UNAME_STRATEGY, "username");
-        logInfo("keycloak-scim-outbound", t.getName(), "Using userNameStrategy=%s", strategy);
-
-        if (user == null) return fallbackUsername; // best-effort on deletes
-
-        switch (strategy) {
-            case "username":
-                return user.getUsername();
-            case "email":
-                return nullIfBlank(user.getEmail());
-            case "attribute":
-                String attr = get(t, CFG_UNAME_ATTR, null);
-                return attr == null ? null : nullIfBlank(user.getFirstAttribute(attr));
-            default:
-                return user.getUsername();
+    /** Jobs are released to the dispatcher after a successful commit; without an active transaction they go straight away. */
+    private void enqueue(ScimJob job) {
+        KeycloakTransactionManager tm = session.getTransactionManager();
+        if (tm == null || !tm.isActive()) {
+            dispatcher.submit(job);
+            return;
         }
+        if (dispatcher.enqueueInTransaction(session, job)) return; // database outbox: committed with the change
+        afterCommit(tm).add(job);
     }
 
-    private static String nullIfBlank(String s) { return (s == null || s.isBlank()) ? null : s; }
-
     /**
-     * Returns true if we successfully created or patched the SCIM user.
+     * True if {@code key} was seen within the debounce window. Inside a transaction the key is
+     * only recorded once it commits, so a rolled-back change does not swallow the real one.
      */
-    private boolean upsertUser(ScimClient scim, UserModel user, String scimUserName) {
-        if (user == null) return false;
-
-        var existingId = scim.findUserIdByUserName(scimUserName);
-        if (existingId.isEmpty()) {
-            boolean created = scim.createUser(ScimMapper.buildCreateUser(user, scimUserName));
-            if (created) return true;
-
-            // Creation failed (likely 409). Re-resolve and PATCH.
-            existingId = scim.findUserIdByUserName(scimUserName);
-            return existingId.map(id -> scim.patchUser(id, ScimMapper.buildPatchUser(user))).orElse(false);
-        } else {
-            return scim.patchUser(existingId.get(), ScimMapper.buildPatchUser(user));
+    private boolean debounced(String key) {
+        KeycloakTransactionManager tm = session.getTransactionManager();
+        if (tm == null || !tm.isActive()) return debounce.putIfAbsent(key, Boolean.TRUE) != null;
+        if (debounce.get(key) != null) return true;
+        return !afterCommit(tm).debounce(key);
+    }
+
+    private ScimAfterCommitTransaction afterCommit(KeycloakTransactionManager tm) {
+        if (afterCommit == null) {
+            afterCommit = new ScimAfterCommitTransaction(dispatcher, debounce);
+            tm.enlistAfterCompletion(afterCommit);
         }
+        return afterCommit;
+    }
+
+    private ScimJob job(ScimJob.Action action, String origin, RealmModel realm, ScimTarget t,
+                        String userId, String scimUserName,
+                        UserModel user, ScimUser snapshot) {
+        final String scimId = (user != null) ? nullIfBlank(user.getFirstAttribute(ScimProvisioner.idAttribute(t.id()))) : null;
+        final String storedHash = (user != null) ? nullIfBlank(user.getFirstAttribute(ScimProvisioner.hashAttribute(t.id()))) : null;
+        return new ScimJob(action, origin, realm.getId(), realm.getName(), t.id(), t.name(),
+                t.endpoint(), userId, scimUserName, scimId, snapshot, storedHash);
     }
 
-    private void deactivateUser(ScimClient scim, String scimUserName) {
-        var existingId = scim.findUserIdByUserName(scimUserName);
-        existingId.ifPresent(id -> scim.patchUser(id, ScimMapper.buildDeactivatePatch()));
+    private static int stateHash(UserModel user) {
+        if (user == null) return 0;
+        return Objects.hash(user.getUsername(), user.getFirstName(), user.getLastName(), user.getEmail(), user.isEnabled());
     }
 
+    private static String nullIfBlank(String s) { return (s == null || s.isBlank()) ? null : s; }
+
     private static String extractUserId(String resourcePath) {
         if (resourcePath == null) return null;
         String[] p = resourcePath.split("/");
@@ -1,26 +1,138 @@
 package es.diegosr.keycloak_scim_outbound;
 
+import es.diegosr.keycloak_scim_outbound.dispatch.ScimDispatcher;
+import es.diegosr.keycloak_scim_outbound.http.ScimClientRegistry;
+import es.diegosr.keycloak_scim_outbound.http.ScimEndpoint;
+import es.diegosr.keycloak_scim_outbound.outbox.DbOutbox;
+import es.diegosr.keycloak_scim_outbound.outbox.DeadLetters;
+import es.diegosr.keycloak_scim_outbound.outbox.DiskJournal;
+import es.diegosr.keycloak_scim_outbound.outbox.JobJournal;
+import es.diegosr.keycloak_scim_outbound.ui.ScimTargetRegistry;
+import es.diegosr.keycloak_scim_outbound.util.ExpiringCache;
+
 import org.keycloak.Config;
 import org.keycloak.events.EventListenerProvider;
 import org.keycloak.events.EventListenerProviderFactory;
+import org.keycloak.models.AbstractKeycloakTransaction;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.KeycloakTransactionManager;
+import org.keycloak.models.utils.PostMigrationEvent;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
 
 public class ScimEventListenerProviderFactory implements EventListenerProviderFactory {
 
+    private static final Duration DEBOUNCE_WINDOW = Duration.ofSeconds(2);
+    private static final int DEBOUNCE_MAX_KEYS   = 50_000;
+
+    /** SPI options, e.g. --spi-events-listener-keycloak-scim-outbound-workers=8 */
+    private int workers;
+    private int lanes;
+    private int queueCapacity;
+    private int maxActiveJobs;
+    private boolean virtualThreads;
+    /** Directory of the on-disk outbox; empty = disabled. */
+    private String outboxDir;
+    /** Keep the outbox in the database instead (takes precedence over outboxDir). */
+    private boolean databaseOutbox;
+    private int outboxLeaseSeconds;
+    /** Also keep each target's content hash in a user attribute, so it survives restarts and is seen by every node. */
+    private boolean contentHashAttribute;
+
+    /** Node-wide, shared by every session-scoped listener. */
+    private final ScimClientRegistry clients = new ScimClientRegistry();
+    private final ExpiringCache<String, Boolean> debounce = new ExpiringCache<>(DEBOUNCE_MAX_KEYS, DEBOUNCE_WINDOW);
+    private final ScimTargetRegistry targets = new ScimTargetRegistry();
+    private volatile ScimDispatcher dispatcher;
+    private volatile DeadLetters deadLetters;
+
     @Override
     public EventListenerProvider create(KeycloakSession session) {
-        return new ScimEventListenerProvider(session);
+        return new ScimEventListenerProvider(session, dispatcher, targets, debounce);
     }
 
-    @Override public void init(Config.Scope config) { }
+    @Override
+    public void init(Config.Scope config) {
+        workers       = Math.max(1, config.getInt("workers", 4));
+        queueCapacity = Math.max(1, config.getInt("queueCapacity", 10_000));
+        maxActiveJobs = Math.max(1, config.getInt("maxActiveJobs", 1_000));
+        lanes         = Math.max(1, Math.min(queueCapacity, config.getInt("lanes", 256)));
+        virtualThreads = config.getBoolean("virtualThreads", false);
+        outboxDir     = config.get("outboxDir", "");
+        databaseOutbox = config.getBoolean("databaseOutbox", false);
+        outboxLeaseSeconds = Math.max(30, config.getInt("outboxLeaseSeconds", 300));
+        contentHashAttribute = config.getBoolean("contentHashAttribute", false);
+    }
 
-    @Override public void postInit(KeycloakSessionFactory factory) { }
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+        JobJournal journal = openJournal(factory);
+        deadLetters = new DeadLetters(factory);
+        dispatcher = new ScimDispatcher(workers, lanes, queueCapacity, maxActiveJobs, virtualThreads, contentHashAttribute, journal, deadLetters, factory, clients);
+        // Replay once the database is ready: targets and users are looked up again.
+        factory.register(event -> {
+            if (!(event instanceof PostMigrationEvent)) return;
+            if (journal instanceof DbOutbox db) db.start(dispatcher);
+            dispatcher.replay();
+        });
+    }
+
+    private JobJournal openJournal(KeycloakSessionFactory factory) {
+        if (databaseOutbox) return new DbOutbox(factory, outboxLeaseSeconds * 1000L);
+        if (outboxDir == null || outboxDir.isBlank()) return JobJournal.NONE;
+        try {
+            return new DiskJournal(Path.of(outboxDir));
+        } catch (IOException | RuntimeException e) {
+            System.err.printf("%s [keycloak-scim-outbound][OUTBOX] Cannot open %s, running without outbox: %s%n",
+                    java.time.OffsetDateTime.now(), outboxDir, e);
+            return JobJournal.NONE;
+        }
+    }
 
-    @Override public void close() { }
+    /**
+     * Called by the SCIM target component factory when a target is created, updated or removed;
+     * {@code endpoint} holds its new settings, null once removed. The target's client is switched
+     * only once the admin transaction has committed, so a rolled-back edit never goes live.
+     */
+    public void onTargetChanged(KeycloakSession session, String realmId, String componentId, ScimEndpoint endpoint) {
+        targets.invalidate(session, realmId);
+        KeycloakTransactionManager tm = session.getTransactionManager();
+        if (tm == null || !tm.isActive()) {
+            applyTarget(componentId, endpoint);
+            return;
+        }
+        tm.enlistAfterCompletion(new AbstractKeycloakTransaction() {
+            @Override protected void commitImpl() { applyTarget(componentId, endpoint); }
+            @Override protected void rollbackImpl() { }
+        });
+    }
+
+    private void applyTarget(String componentId, ScimEndpoint endpoint) {
+        if (endpoint != null) clients.update(componentId, endpoint);
+        else clients.evict(componentId);
+    }
+
+    /** Node-wide dispatcher, for the admin resource. */
+    public ScimDispatcher dispatcher() {
+        return dispatcher;
+    }
+
+    public DeadLetters deadLetters() {
+        return deadLetters;
+    }
+
+    @Override
+    public void close() {
+        if (deadLetters != null) deadLetters.close();
+        if (dispatcher != null) dispatcher.close();
+        clients.close();
+    }
 
     @Override
     public String getId() {
         return "keycloak-scim-outbound";
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,98 @@
+package es.diegosr.keycloak_scim_outbound.admin;
+
+import es.diegosr.keycloak_scim_outbound.ScimEventListenerProviderFactory;
+import es.diegosr.keycloak_scim_outbound.outbox.DeadLetters;
+import es.diegosr.keycloak_scim_outbound.ui.ScimTargetProviderFactory;
+
+import jakarta.ws.rs.DefaultValue;
+import jakarta.ws.rs.ForbiddenException;
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.NotAuthorizedException;
+import jakarta.ws.rs.NotFoundException;
+import jakarta.ws.rs.POST;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.PathParam;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.QueryParam;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+
+import org.keycloak.component.ComponentModel;
+import org.keycloak.events.EventListenerProvider;
+import org.keycloak.models.AdminRoles;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.Constants;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleModel;
+import org.keycloak.services.managers.AppAuthManager;
+import org.keycloak.services.managers.AuthenticationManager;
+
+import java.util.Map;
+
+/**
+ * Operations on the SCIM outbound state of a realm, under {@code /realms/{realm}/scim-outbound}.
+ * Callers need a bearer token of the realm whose user holds {@code realm-management/manage-users}.
+ *
+ * <pre>
+ * GET  targets/{componentId}/dead-letters?first=0&amp;max=100
+ * POST targets/{componentId}/dead-letters/replay?perSecond=50
+ * </pre>
+ */
+public class ScimAdminResource {
+    private static final int MAX_PAGE = 500;
+
+    private final KeycloakSession session;
+
+    public ScimAdminResource(KeycloakSession session) {
+        this.session = session;
+    }
+
+    @GET
+    @Path("targets/{targetId}/dead-letters")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Map<String, Object> deadLetters(@PathParam("targetId") String targetId,
+                                           @QueryParam("first") @DefaultValue("0") int first,
+                                           @QueryParam("max") @DefaultValue("100") int max) {
+        RealmModel realm = requireManageUsers();
+        ComponentModel target = requireTarget(realm, targetId);
+        DeadLetters dlq = listener().deadLetters();
+        return Map.of(
+                "total", dlq.count(session, realm.getId(), target.getId()),
+                "deadLetters", dlq.list(session, realm.getId(), target.getId(), Math.max(0, first), Math.max(1, Math.min(max, MAX_PAGE))));
+    }
+
+    @POST
+    @Path("targets/{targetId}/dead-letters/replay")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response replay(@PathParam("targetId") String targetId,
+                           @QueryParam("perSecond") @DefaultValue("50") int perSecond) {
+        RealmModel realm = requireManageUsers();
+        ComponentModel target = requireTarget(realm, targetId);
+        ScimEventListenerProviderFactory listener = listener();
+        long pending = listener.deadLetters().count(session, realm.getId(), target.getId());
+        listener.deadLetters().replay(realm.getId(), target.getId(), Math.max(1, perSecond), listener.dispatcher());
+        return Response.accepted(Map.of("replaying", pending)).build();
+    }
+
+    private RealmModel requireManageUsers() {
+        RealmModel realm = session.getContext().getRealm();
+        AuthenticationManager.AuthResult auth = new AppAuthManager.BearerTokenAuthenticator(session).authenticate();
+        if (auth == null) throw new NotAuthorizedException("Bearer");
+        ClientModel realmManagement = realm.getClientByClientId(Constants.REALM_MANAGEMENT_CLIENT_ID);
+        RoleModel manageUsers = (realmManagement != null) ? realmManagement.getRole(AdminRoles.MANAGE_USERS) : null;
+        if (manageUsers == null || !auth.getUser().hasRole(manageUsers)) throw new ForbiddenException();
+        return realm;
+    }
+
+    private static ComponentModel requireTarget(RealmModel realm, String targetId) {
+        ComponentModel t = realm.getComponent(targetId);
+        if (t == null || !ScimTargetProviderFactory.ID.equals(t.getProviderId())) throw new NotFoundException("No SCIM target " + targetId);
+        return t;
+    }
+
+    private ScimEventListenerProviderFactory listener() {
+        return (ScimEventListenerProviderFactory) session.getKeycloakSessionFactory()
+                .getProviderFactory(EventListenerProvider.class, ScimTargetProviderFactory.ID);
+    }
+}
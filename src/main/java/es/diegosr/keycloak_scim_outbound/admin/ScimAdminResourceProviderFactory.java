@@ -0,0 +1,34 @@
+package es.diegosr.keycloak_scim_outbound.admin;
+
+import org.keycloak.Config;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.services.resource.RealmResourceProvider;
+import org.keycloak.services.resource.RealmResourceProviderFactory;
+
+/** Mounts {@link ScimAdminResource} at {@code /realms/{realm}/scim-outbound}. */
+public class ScimAdminResourceProviderFactory implements RealmResourceProviderFactory {
+    public static final String ID = "scim-outbound";
+
+    @Override
+    public RealmResourceProvider create(KeycloakSession session) {
+        return new RealmResourceProvider() {
+            @Override public Object getResource() { return new ScimAdminResource(session); }
+            @Override public void close() { }
+        };
+    }
+
+    @Override
+    public void init(Config.Scope config) { }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) { }
+
+    @Override
+    public void close() { }
+
+    @Override
+    public String getId() {
+        return ID;
+    }
+}
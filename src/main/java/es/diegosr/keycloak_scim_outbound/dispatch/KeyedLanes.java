@@ -0,0 +1,129 @@
+package es.diegosr.keycloak_scim_outbound.dispatch;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Runs asynchronous tasks keyed by a string, hashing each key to one of a fixed number of lanes.
+ * A lane starts its next task only when the previous one's future has completed, so tasks with
+ * the same key run strictly in submission order; different lanes run in parallel.
+ *
+ * Every partition (the dispatcher uses one per SCIM target) has its own set of lanes, so tasks
+ * waiting on a slow or throttled partition never hold up the keys of another one.
+ *
+ * Lanes hold no thread while their task is waiting on the network: each step is handed to the
+ * executor, and the following one is scheduled from the completion of the previous future.
+ *
+ * If the executor refuses to take a lane's next step, the keys still queued in that lane are
+ * handed to {@code rejected} (in order) and the lane starts over empty; nothing is left behind.
+ */
+final class KeyedLanes {
+    private final int lanesPerPartition;
+    private final ConcurrentHashMap<String, Lane[]> partitions = new ConcurrentHashMap<>();
+    private final Executor executor;
+    private final Function<String, CompletableFuture<Void>> task;
+    private final BiConsumer<String, RejectedExecutionException> rejected;
+
+    KeyedLanes(int lanesPerPartition, Executor executor, Function<String, CompletableFuture<Void>> task,
+               BiConsumer<String, RejectedExecutionException> rejected) {
+        this.lanesPerPartition = lanesPerPartition;
+        this.executor = executor;
+        this.task = task;
+        this.rejected = rejected;
+    }
+
+    /** Lane index of {@code key} in its partition; equal indexes in one partition mean the two keys never run concurrently. */
+    int laneOf(String key) {
+        return Math.floorMod(spread(key.hashCode()), lanesPerPartition);
+    }
+
+    /**
+     * Queue {@code key} behind whatever its lane of {@code partition} is running. Throws
+     * {@link RejectedExecutionException} (with the key not queued) if the lane was idle and the
+     * executor refused to start it.
+     */
+    void execute(String partition, String key) {
+        partitions.computeIfAbsent(partition, p -> newLanes())[laneOf(key)].add(key);
+    }
+
+    /** Keys queued in lanes but not started yet. */
+    int waiting() {
+        int n = 0;
+        for (Lane[] lanes : partitions.values()) {
+            for (Lane l : lanes) n += l.size();
+        }
+        return n;
+    }
+
+    private Lane[] newLanes() {
+        Lane[] lanes = new Lane[lanesPerPartition];
+        for (int i = 0; i < lanes.length; i++) lanes[i] = new Lane();
+        return lanes;
+    }
+
+    private static int spread(int h) {
+        return h ^ (h >>> 16);
+    }
+
+    private final class Lane {
+        private final ArrayDeque<String> keys = new ArrayDeque<>();
+        private boolean running;
+
+        void add(String key) {
+            synchronized (this) {
+                keys.add(key);
+                if (running) return;
+                running = true;
+            }
+            try {
+                executor.execute(this::runNext);
+            } catch (RejectedExecutionException e) {
+                synchronized (this) {
+                    keys.removeLastOccurrence(key);
+                    running = false;
+                }
+                throw e;
+            }
+        }
+
+        synchronized int size() {
+            return keys.size();
+        }
+
+        private void runNext() {
+            String key;
+            synchronized (this) {
+                key = keys.poll();
+                if (key == null) { running = false; return; }
+            }
+            CompletableFuture<Void> done;
+            try {
+                done = task.apply(key);
+            } catch (RuntimeException e) {
+                done = CompletableFuture.completedFuture(null);
+            }
+            done.whenComplete((r, e) -> next());
+        }
+
+        private void next() {
+            try {
+                executor.execute(this::runNext);
+            } catch (RejectedExecutionException e) {
+                List<String> left;
+                synchronized (this) {
+                    left = new ArrayList<>(keys);
+                    keys.clear();
+                    running = false;
+                }
+                left.forEach(key -> rejected.accept(key, e));
+            }
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package es.diegosr.keycloak_scim_outbound.dispatch;
+
+import es.diegosr.keycloak_scim_outbound.util.ExpiringCache;
+import org.keycloak.models.AbstractKeycloakTransaction;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static es.diegosr.keycloak_scim_outbound.dispatch.ScimProvisioner.logErr;
+import static es.diegosr.keycloak_scim_outbound.dispatch.ScimProvisioner.logInfo;
+
+/**
+ * Holds the jobs produced during one KeycloakSession and releases them to the
+ * dispatcher only once the session transaction has committed.
+ * Enlisted with {@code enlistAfterCompletion}, so a rollback never reaches a SCIM target
+ * and slow targets never keep the database transaction open.
+ * When the outbox is enabled, commit returns only once the jobs are journaled (one group fsync).
+ * Debounce keys are recorded on commit as well, so a rolled-back change never hides the next one.
+ */
+public class ScimAfterCommitTransaction extends AbstractKeycloakTransaction {
+    private final ScimDispatcher dispatcher;
+    private final ExpiringCache<String, Boolean> debounce;
+    private final List<ScimJob> jobs = new ArrayList<>();
+    private final Set<String> debounceKeys = new LinkedHashSet<>();
+    private static final long JOURNAL_WAIT_SECONDS = 5;
+
+    public ScimAfterCommitTransaction(ScimDispatcher dispatcher, ExpiringCache<String, Boolean> debounce) {
+        this.dispatcher = dispatcher;
+        this.debounce = debounce;
+    }
+
+    public void add(ScimJob job) {
+        jobs.add(job);
+    }
+
+    /** Records {@code key} in the debounce cache on commit; false if this transaction already holds it. */
+    public boolean debounce(String key) {
+        return debounceKeys.add(key);
+    }
+
+    @Override
+    protected void commitImpl() {
+        for (String key : debounceKeys) debounce.put(key, Boolean.TRUE);
+        debounceKeys.clear();
+        CompletableFuture<Void> journaled = CompletableFuture.completedFuture(null);
+        for (ScimJob job : jobs) journaled = dispatcher.submit(job);
+        int n = jobs.size();
+        jobs.clear();
+        try {
+            journaled.get(JOURNAL_WAIT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            logErr("SCIM", null, "Could not journal %d SCIM job(s); they are queued but would not survive a restart: %s", n, e);
+        }
+    }
+
+    @Override
+    protected void rollbackImpl() {
+        if (!jobs.isEmpty()) {
+            logInfo("SCIM", null, "Transaction rolled back; discarding %d pending SCIM job(s)", jobs.size());
+        }
+        jobs.clear();
+        debounceKeys.clear();
+    }
+}
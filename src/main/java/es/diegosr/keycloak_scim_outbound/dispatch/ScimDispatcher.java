@@ -0,0 +1,616 @@
+package es.diegosr.keycloak_scim_outbound.dispatch;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import es.diegosr.keycloak_scim_outbound.http.ScimCapabilities;
+import es.diegosr.keycloak_scim_outbound.http.ScimClient;
+import es.diegosr.keycloak_scim_outbound.http.ScimClientRegistry;
+import es.diegosr.keycloak_scim_outbound.outbox.DeadLetters;
+import es.diegosr.keycloak_scim_outbound.outbox.JobJournal;
+import es.diegosr.keycloak_scim_outbound.ui.ScimTargetProviderFactory;
+
+import static es.diegosr.keycloak_scim_outbound.dispatch.ScimProvisioner.logErr;
+import static es.diegosr.keycloak_scim_outbound.dispatch.ScimProvisioner.logInfo;
+
+/**
+ * Node-wide dispatch engine. Created once by the listener factory and shared by
+ * every KeycloakSession, so SCIM round trips (and their retries) happen on a
+ * bounded worker pool instead of the login / admin request thread.
+ *
+ * Jobs are coalesced per (realm, target, user) while they wait: only the latest
+ * job for a user is kept, so a burst of edits becomes a single upsert of the final
+ * state and a DELETE replaces any queued update.
+ *
+ * For targets that support SCIM Bulk, a worker picking up a job also takes other waiting jobs of
+ * the same target, from any of its lanes, and sends them together through POST /Bulk. A key is
+ * claimed in {@link #inFlight} before its job is taken, so a user never has two jobs running at
+ * once, whichever lane (or batch) took them.
+ *
+ * Each target has its own {@code lanes} lanes and each (realm, target, user) key is hashed to one
+ * of them; a lane starts its next job only once the previous one has finished, so a CREATE and a
+ * later DELETE for the same user never race, while users in different lanes are provisioned in
+ * parallel. A slow, throttled or failing target only fills its own lanes and its own job slots.
+ *
+ * Workers only start jobs: the SCIM calls run asynchronously, so a worker is free again
+ * as soon as the first request is on the wire. The number of started-but-unfinished jobs
+ * is capped at {@code maxActiveJobs} per target; a lane that finds no free slot waits on a
+ * future (never on a worker thread) and its jobs stay in the (bounded, coalescing) queue.
+ *
+ * Every accepted job is first appended to a {@link JobJournal} and acknowledged there once it has
+ * run, so with the on-disk outbox enabled jobs still queued at shutdown or crash are replayed by
+ * {@link #replay()} on the next start.
+ *
+ * With {@code virtualThreads} (and a Java 21+ runtime) each job starts on its own virtual
+ * thread instead of a fixed platform pool; the queue capacity then bounds waiting jobs.
+ *
+ * An UPDATE whose content hash matches what its target last received is dropped by the worker
+ * that would start it (see {@link ScimProvisioner#unchanged}): by then the user's previous job has
+ * completed, so the hash is that of what the target holds. Nothing of the check (nor the target's
+ * client) runs on the thread that submits the job.
+ *
+ * While a target's circuit breaker is open its jobs are parked: they leave their lane, stay
+ * queued (and journaled, still coalescing) and go back to their lanes once a probe finds the
+ * target healthy again, instead of failing one by one into the dead letters. Parked jobs do not
+ * count toward {@code queueCapacity}, so a target that is down cannot fill the queue of the
+ * healthy ones; instead each target parks at most {@code queueCapacity} jobs, further ones go
+ * to the dead letters.
+ *
+ * Blocking follow-ups (storing SCIM ids and content hashes, writing dead letters) run on a small
+ * pool of their own, never on the thread that submitted the job: that may be a request thread
+ * still inside its transaction. When that pool is full or shut down the follow-up is dropped and
+ * counted ({@link #droppedFollowUps()}).
+ */
+public class ScimDispatcher implements AutoCloseable {
+    private static final int BLOCKING_WORKERS = 2;
+
+    private final ExecutorService pool;
+    /** Keycloak transactions of finished jobs; see {@link #runBlocking}. */
+    private final ExecutorService blocking;
+    private final AtomicLong droppedFollowUps = new AtomicLong();
+    private final int queueCapacity;
+    private final ScimProvisioner provisioner;
+    private final KeyedLanes lanes;
+    /** Job slots per target id. */
+    private final ConcurrentHashMap<String, Slots> slots = new ConcurrentHashMap<>();
+    private final int maxActive;
+    /** Started jobs whose SCIM calls have not completed yet, over all targets. */
+    private final AtomicInteger active = new AtomicInteger();
+    private final JobJournal journal;
+    private final KeycloakSessionFactory sessionFactory;
+    /** Latest not-yet-started job per coalescing key. */
+    private final ConcurrentHashMap<String, Queued> pending = new ConcurrentHashMap<>();
+    /** Keys of {@link #pending} per target id, updated with it, so a bulk batch only looks at its own target's jobs. */
+    private final ConcurrentHashMap<String, Set<String>> pendingByTarget = new ConcurrentHashMap<>();
+    /** Keys whose job has been taken out of {@link #pending} and not finished yet; the future completes when it has. */
+    private final ConcurrentHashMap<String, CompletableFuture<Void>> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * A waiting job, the journal sequence of the newest event merged into it, and the futures of
+     * {@link #submitTracked} callers waiting for it to run (usually none).
+     */
+    private record Queued(ScimJob job, long seq, List<CompletableFuture<Void>> watchers) {
+        Queued merge(ScimJob merged, long newerSeq, List<CompletableFuture<Void>> more) {
+            if (more.isEmpty()) return new Queued(merged, Math.max(seq, newerSeq), watchers);
+            List<CompletableFuture<Void>> all = new ArrayList<>(watchers);
+            all.addAll(more);
+            return new Queued(merged, Math.max(seq, newerSeq), all);
+        }
+
+        void done() {
+            watchers.forEach(w -> w.complete(null));
+        }
+    }
+
+    private static final long UNPARK_CHECK_MILLIS = 1000;
+    /** Keys of queued jobs waiting for their target's circuit to close, per target id. */
+    private final ConcurrentHashMap<String, Set<String>> parked = new ConcurrentHashMap<>();
+    /** Keys in {@link #parked}, over all targets; left out of the queue capacity. */
+    private final AtomicInteger parkedCount = new AtomicInteger();
+    /** Jobs the provisioner handed back (circuit opened while they ran), picked up when their run completes. */
+    private final ConcurrentHashMap<String, ScimJob> bounced = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService unparker = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "scim-outbound-breaker");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public ScimDispatcher(int workers, int lanes, int queueCapacity, int maxActiveJobs, boolean virtualThreads,
+                          boolean persistContentHash, JobJournal journal, DeadLetters deadLetters,
+                          KeycloakSessionFactory sessionFactory, ScimClientRegistry clients) {
+        this.journal = journal;
+        this.sessionFactory = sessionFactory;
+        this.queueCapacity = queueCapacity;
+        this.maxActive = maxActiveJobs;
+        this.pool = virtualThreads ? virtualOrPlatformPool(workers, queueCapacity) : platformPool(workers, queueCapacity);
+        this.blocking = platformPool("scim-outbound-db-", BLOCKING_WORKERS, queueCapacity);
+        this.provisioner = new ScimProvisioner(sessionFactory, clients, deadLetters, this::runBlocking,
+                job -> bounced.put(coalescingKey(job), job), persistContentHash, journal.shared());
+        this.lanes = new KeyedLanes(lanes, pool, this::run, this::laneRejected);
+        unparker.scheduleWithFixedDelay(this::unpark, UNPARK_CHECK_MILLIS, UNPARK_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Queue a job; never blocks the caller. Jobs are dropped (and logged) when the queue is full.
+     * The returned future completes once the job is journaled; callers that must not lose it wait on it.
+     */
+    public CompletableFuture<Void> submit(ScimJob job) {
+        return submit(job, null, List.of());
+    }
+
+    /** Like {@link #submit(ScimJob)}, for a job the journal already holds as entry {@code entryId} (a database outbox row). */
+    public CompletableFuture<Void> submit(ScimJob job, String entryId) {
+        return submit(job, entryId, List.of());
+    }
+
+    /**
+     * Like {@link #submit(ScimJob)}, but the returned future completes once the job has run: pushed,
+     * skipped as unchanged, or handed to the dead letters. It never completes if the node stops first.
+     */
+    public CompletableFuture<Void> submitTracked(ScimJob job) {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        submit(job, null, List.of(done));
+        return done;
+    }
+
+    private CompletableFuture<Void> submit(ScimJob job, String entryId, List<CompletableFuture<Void>> watchers) {
+        final String key = coalescingKey(job);
+        final long seq = journal.append(key, job, entryId);
+        final boolean[] fresh = {false};
+        pending.compute(key, (k, queued) -> {
+            if (queued == null) {
+                fresh[0] = true;
+                pendingOf(job.targetId()).add(k);
+                return new Queued(job, seq, watchers);
+            }
+            return queued.merge(coalesce(queued.job(), job), seq, watchers);
+        });
+        if (!fresh[0]) return journal.flushed(); // the key is already queued in its lane and will pick up the merged job
+
+        try {
+            // A thread-per-task executor has no queue of its own to bound.
+            if (queued() > queueCapacity) throw new RejectedExecutionException("dispatch queue full (" + queueCapacity + ")");
+            lanes.execute(job.targetId(), key);
+        } catch (RejectedExecutionException e) {
+            drop(key, e.getMessage());
+        }
+        return journal.flushed();
+    }
+
+    /**
+     * Store the job in the outbox within {@code session}'s transaction instead of queueing it after
+     * commit; false if the configured outbox cannot (the caller then uses {@link #submit}).
+     */
+    public boolean enqueueInTransaction(KeycloakSession session, ScimJob job) {
+        return journal.enqueue(session, coalescingKey(job), job);
+    }
+
+    /**
+     * Re-submit the jobs the journal recovered from the previous run, with the current settings
+     * of their targets (jobs of targets that no longer exist are discarded), then let the journal
+     * forget the old entries once the re-submitted ones are safely written again. Compacts even
+     * when nothing is left to replay: the previous run's segments still have to go.
+     */
+    public void replay() {
+        List<ScimJob> recovered = journal.recovered();
+        if (recovered.isEmpty()) {
+            journal.compact();
+            return;
+        }
+
+        List<ScimJob> jobs = new ArrayList<>();
+        KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+            for (ScimJob job : recovered) {
+                ScimJob resolved = withCurrentTarget(session, job);
+                if (resolved != null) jobs.add(resolved);
+            }
+        });
+
+        CompletableFuture<Void> written = CompletableFuture.completedFuture(null);
+        for (ScimJob job : jobs) written = submit(job);
+        written.whenComplete((r, e) -> {
+            if (e == null) journal.compact();
+        });
+        logInfo("SCIM", "dispatcher", "Replayed %d unfinished job(s) from the outbox (%d discarded: target removed)",
+                jobs.size(), recovered.size() - jobs.size());
+    }
+
+    /**
+     * {@code job} with the current name and endpoint of its target component, or null if the
+     * target no longer exists. Used for jobs read back from storage, which never hold the token.
+     */
+    public static ScimJob withCurrentTarget(KeycloakSession session, ScimJob job) {
+        RealmModel realm = session.realms().getRealm(job.realmId());
+        ComponentModel t = (realm != null) ? realm.getComponent(job.targetId()) : null;
+        if (t == null || !ScimTargetProviderFactory.ID.equals(t.getProviderId())) return null;
+        return new ScimJob(job.action(), job.origin(), job.realmId(), job.realmName(), t.getId(), t.getName(),
+                ScimTargetProviderFactory.endpoint(t), job.userId(), job.scimUserName(), job.scimId(), job.user(), job.storedHash());
+    }
+
+    private void drop(String key, String reason) {
+        Queued dropped = take(key, null);
+        if (dropped == null) return;
+        ScimJob job = dropped.job();
+        leaveParked(job.targetId(), key);
+        logErr("SCIM", job.targetName(), "%s targetUserName=%s DROPPED: %s", job.origin(), job.scimUserName(), reason);
+        provisioner.deadLetter(job, new RejectedExecutionException("dropped: " + reason));
+        journal.ack(key, dropped.seq());
+        dropped.done();
+    }
+
+    private Set<String> pendingOf(String targetId) {
+        return pendingByTarget.computeIfAbsent(targetId, t -> ConcurrentHashMap.newKeySet());
+    }
+
+    /** Take {@code key}'s job out of {@link #pending} (only if it still is {@code expected}, unless that is null). */
+    private Queued take(String key, Queued expected) {
+        final Queued[] taken = {null};
+        pending.computeIfPresent(key, (k, queued) -> {
+            if (expected != null && queued != expected) return queued;
+            taken[0] = queued;
+            pendingOf(queued.job().targetId()).remove(k);
+            return null;
+        });
+        return taken[0];
+    }
+
+    /**
+     * The pool refused a lane's next step, leaving {@code key} unscheduled. While the node is stopping
+     * the job stays journaled for the next start; otherwise it would never run, so it is dropped
+     * (dead-lettered) instead of waiting in {@link #pending} for a lane that no longer holds it.
+     */
+    private void laneRejected(String key, RejectedExecutionException e) {
+        if (pool.isShutdown()) return;
+        drop(key, e.getMessage());
+    }
+
+    /** Jobs waiting for their lane, not counting those parked until their target is back. */
+    public int queued() { return Math.max(0, pending.size() - parkedCount.get()); }
+
+    /** Jobs started whose SCIM calls are still running. */
+    public int active() { return active.get(); }
+
+    /** Blocking follow-ups (id, hash or dead-letter writes) dropped because their pool was full or shut down. */
+    public long droppedFollowUps() { return droppedFollowUps.get(); }
+
+    private void runBlocking(Runnable r) {
+        try {
+            blocking.execute(r);
+        } catch (RejectedExecutionException e) {
+            long n = droppedFollowUps.incrementAndGet();
+            logErr("SCIM", "dispatcher", "Blocking follow-up dropped (%d so far): %s", n, e.getMessage());
+        }
+    }
+
+    /** Runs on a worker when the key reaches the head of its lane; the lane waits for the returned future. */
+    private CompletableFuture<Void> run(String key) {
+        Queued waiting = pending.get(key);
+        if (waiting == null) return CompletableFuture.completedFuture(null); // already sent as part of a bulk batch
+        if (!provisioner.available(waiting.job())) {
+            park(waiting.job().targetId(), key);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        // Wait for a slot of its target before taking the job: while we wait, newer submits still coalesce into it.
+        Slots target = slots.computeIfAbsent(waiting.job().targetId(), t -> new Slots());
+        return target.acquire().thenCompose(slot -> {
+            active.incrementAndGet();
+            CompletableFuture<Void> done;
+            try {
+                // The capabilities decide between bulk and a single job. They are awaited (by no thread) before
+                // the job is taken, so whichever lane gets them first can still batch the jobs of the others.
+                done = provisioner.capabilities(waiting.job()).thenCompose(caps -> start(key, caps));
+            } catch (RuntimeException e) {
+                done = CompletableFuture.failedFuture(e);
+            }
+            return done.whenComplete((r, e) -> {
+                active.decrementAndGet();
+                target.release();
+            });
+        });
+    }
+
+    /** Take {@code key}'s job and send it, with waiting jobs of its target through POST /Bulk when {@code caps} allow it. */
+    private CompletableFuture<Void> start(String key, ScimCapabilities caps) {
+        CompletableFuture<Void> claim = new CompletableFuture<>();
+        CompletableFuture<Void> busy = inFlight.putIfAbsent(key, claim);
+        if (busy != null) {
+            // An older job of this user went with another lane's bulk batch: come back once it is done.
+            busy.whenComplete((r, e) -> requeue(key));
+            return CompletableFuture.completedFuture(null);
+        }
+        // Taking the job out of the map first means later submits queue the key again, behind this job.
+        Queued queued = take(key, null);
+        if (queued == null || skipUnchanged(key, queued)) { // already sent as part of a bulk batch, or nothing to send
+            release(key, claim);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        ScimJob job = queued.job();
+        int capacity = ScimProvisioner.bulkCapacity(caps);
+        ScimClient.BulkOperation op = (capacity >= 2 && provisioner.bulkEligible(job)) ? provisioner.bulkOperation(job, caps, "op-0") : null;
+        if (op == null) {
+            return provisioner.execute(job).whenComplete((r, e) -> {
+                finished(key, queued);
+                release(key, claim);
+            });
+        }
+
+        List<ScimJob> batch = new ArrayList<>();
+        List<ScimClient.BulkOperation> ops = new ArrayList<>();
+        Map<String, Queued> taken = new HashMap<>();
+        Map<String, CompletableFuture<Void>> claims = new HashMap<>();
+        batch.add(job);
+        ops.add(op);
+        taken.put(key, queued);
+        claims.put(key, claim);
+        // Waiting jobs of this target from any lane, as long as their user has no job running.
+        for (String other : pendingOf(job.targetId())) {
+            if (batch.size() >= capacity) break;
+            CompletableFuture<Void> otherClaim = new CompletableFuture<>();
+            if (inFlight.putIfAbsent(other, otherClaim) != null) continue;
+            Queued q = pending.get(other);
+            if (q == null || !provisioner.bulkEligible(q.job()) || take(other, q) == null) {
+                release(other, otherClaim);
+                continue;
+            }
+            leaveParked(job.targetId(), other); // its target is available again: it goes with this batch
+            if (skipUnchanged(other, q)) {
+                release(other, otherClaim);
+                continue;
+            }
+            batch.add(q.job());
+            ops.add(provisioner.bulkOperation(q.job(), caps, "op-" + ops.size()));
+            taken.put(other, q);
+            claims.put(other, otherClaim);
+        }
+        return provisioner.executeBulk(batch, ops).whenComplete((r, e) -> {
+            taken.forEach(this::finished);
+            claims.forEach(this::release);
+        });
+    }
+
+    /** {@code key}'s job is over: let the key run again, and wake up whoever waits for it. */
+    private void release(String key, CompletableFuture<Void> claim) {
+        inFlight.remove(key, claim);
+        claim.complete(null);
+    }
+
+    /** Put {@code key} back in its lane, if it still has a job waiting. */
+    private void requeue(String key) {
+        Queued waiting = pending.get(key);
+        if (waiting == null) return;
+        try {
+            lanes.execute(waiting.job().targetId(), key);
+        } catch (RejectedExecutionException e) {
+            laneRejected(key, e);
+        }
+    }
+
+    /** Finish a job taken out of {@link #pending} without sending it, if the target already holds its content. */
+    private boolean skipUnchanged(String key, Queued queued) {
+        ScimJob job = queued.job();
+        if (!provisioner.unchanged(job)) return false;
+        logInfo("SCIM", job.targetName(), "%s targetUserName=%s SKIPPED (unchanged)", job.origin(), job.scimUserName());
+        finished(key, queued); // journaled anyway: a database outbox row must still be deleted
+        return true;
+    }
+
+    /** A job's run is over: acknowledge it, unless the provisioner handed it back to wait for its target. */
+    private void finished(String key, Queued ran) {
+        ScimJob back = bounced.remove(key);
+        if (back == null) {
+            journal.ack(key, ran.seq());
+            ran.done();
+            return;
+        }
+        // Not acknowledged: it is still to be done. Newer events queued meanwhile are merged on top of it.
+        final boolean[] fresh = {false};
+        pending.compute(key, (k, queued) -> {
+            if (queued == null) {
+                fresh[0] = true;
+                pendingOf(back.targetId()).add(k);
+                return new Queued(back, ran.seq(), ran.watchers());
+            }
+            return new Queued(back, ran.seq(), ran.watchers()).merge(coalesce(back, queued.job()), queued.seq(), queued.watchers());
+        });
+        // Otherwise the key is already back in its lane, where it finds the circuit open and parks.
+        if (fresh[0]) park(back.targetId(), key);
+    }
+
+    private void park(String targetId, String key) {
+        final boolean[] full = {false};
+        // compute (not computeIfAbsent + add) so a key never lands in a set unpark() has already taken.
+        parked.compute(targetId, (t, keys) -> {
+            if (keys == null) keys = ConcurrentHashMap.newKeySet();
+            if (keys.size() >= queueCapacity && !keys.contains(key)) full[0] = true;
+            else if (keys.add(key)) parkedCount.incrementAndGet();
+            return keys;
+        });
+        if (full[0]) drop(key, "too many jobs parked for target (" + queueCapacity + ")");
+    }
+
+    /** Take {@code key} out of its target's parked jobs, if it is there. */
+    private void leaveParked(String targetId, String key) {
+        parked.computeIfPresent(targetId, (t, keys) -> {
+            if (keys.remove(key)) parkedCount.decrementAndGet();
+            return keys;
+        });
+    }
+
+    /** Put the parked jobs of every target whose circuit has closed back into their lanes. */
+    private void unpark() {
+        for (Map.Entry<String, Set<String>> e : parked.entrySet()) {
+            Queued sample = null;
+            for (String key : e.getValue()) {
+                if ((sample = pending.get(key)) != null) break;
+            }
+            if (sample != null && !provisioner.available(sample.job())) continue;
+
+            Set<String> keys = parked.remove(e.getKey());
+            if (keys == null) continue;
+            parkedCount.addAndGet(-keys.size());
+            for (String key : keys) {
+                if (!pending.containsKey(key)) continue; // dropped meanwhile
+                try {
+                    lanes.execute(e.getKey(), key);
+                } catch (RejectedExecutionException ex) {
+                    drop(key, ex.getMessage());
+                }
+            }
+            if (sample != null) logInfo("SCIM", sample.job().targetName(), "Target available again; resuming %d parked job(s)", keys.size());
+        }
+    }
+
+    static String coalescingKey(ScimJob job) {
+        return job.realmId() + ":" + job.targetId() + ":" + job.userId();
+    }
+
+    /**
+     * Merge a newer job into the one still waiting for the same user.
+     * CREATE/UPDATE are both upserts of the snapshot they carry, so the newest state wins;
+     * a DELETE supersedes queued upserts, and an upsert after a queued DELETE re-provisions.
+     * A queued CREATE keeps its action so logs still report the creation.
+     */
+    static ScimJob coalesce(ScimJob queued, ScimJob next) {
+        if (queued.action() == ScimJob.Action.CREATE && next.action() == ScimJob.Action.UPDATE) {
+            return new ScimJob(ScimJob.Action.CREATE, queued.origin(),
+                    next.realmId(), next.realmName(), next.targetId(), next.targetName(),
+                    next.endpoint(), next.userId(), next.scimUserName(),
+                    next.scimId() != null ? next.scimId() : queued.scimId(), next.user(), next.storedHash());
+        }
+        return next;
+    }
+
+    /** Stops accepting jobs and gives queued and in-flight ones a short grace period; the rest (parked ones too) stay journaled. */
+    @Override
+    public void close() {
+        unparker.shutdownNow();
+        pool.shutdown();
+        try {
+            if (!pool.awaitTermination(10, TimeUnit.SECONDS)) {
+                int lost = pool.shutdownNow().size();
+                logInfo("SCIM", "dispatcher", "Shutdown timed out; %d queued job(s) discarded", lost);
+            }
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (active() > 0 && System.nanoTime() < deadline) Thread.sleep(20);
+            if (active() > 0) {
+                logInfo("SCIM", "dispatcher", "Shutdown timed out; %d job(s) still waiting for their target", active());
+            }
+            blocking.shutdown();
+            if (!blocking.awaitTermination(5, TimeUnit.SECONDS)) {
+                logInfo("SCIM", "dispatcher", "Shutdown timed out; %d blocking follow-up(s) discarded", blocking.shutdownNow().size());
+            }
+        } catch (InterruptedException e) {
+            pool.shutdownNow();
+            blocking.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        journal.close();
+    }
+
+    /**
+     * The {@code maxActiveJobs} slots of one target. A lane that finds none free gets a future that
+     * completes when one is released, so waiting holds no thread and only ever delays this target.
+     */
+    private final class Slots {
+        private int free = maxActive;
+        private final ArrayDeque<CompletableFuture<Void>> waiting = new ArrayDeque<>();
+
+        synchronized CompletableFuture<Void> acquire() {
+            if (free > 0) {
+                free--;
+                return CompletableFuture.completedFuture(null);
+            }
+            CompletableFuture<Void> slot = new CompletableFuture<>();
+            waiting.add(slot);
+            return slot;
+        }
+
+        void release() {
+            CompletableFuture<Void> next;
+            synchronized (this) {
+                next = waiting.poll();
+                if (next == null) {
+                    free++;
+                    return;
+                }
+            }
+            // The next job starts on a worker, not on the (HTTP client) thread that finished this one.
+            try {
+                pool.execute(() -> next.complete(null));
+            } catch (RejectedExecutionException e) {
+                next.complete(null);
+            }
+        }
+    }
+
+    static ExecutorService platformPool(int workers, int queueCapacity) {
+        return platformPool("scim-outbound-", workers, queueCapacity);
+    }
+
+    private static ExecutorService platformPool(String threadPrefix, int workers, int queueCapacity) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(
+                workers, workers,
+                60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                new WorkerThreadFactory(threadPrefix),
+                (r, executor) -> { throw new RejectedExecutionException("dispatch queue full (" + queueCapacity + ")"); });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * {@code Executors.newVirtualThreadPerTaskExecutor()} when the runtime has it (Java 21+).
+     * Looked up reflectively because the extension is still compiled for Java 17.
+     */
+    static ExecutorService virtualOrPlatformPool(int workers, int queueCapacity) {
+        try {
+            ExecutorService pool = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            logInfo("SCIM", "dispatcher", "Running jobs on virtual threads");
+            return pool;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            logInfo("SCIM", "dispatcher", "Virtual threads not available on Java %s; using %d platform workers",
+                    Runtime.version().feature(), workers);
+            return platformPool(workers, queueCapacity);
+        }
+    }
+
+    private static final class WorkerThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger seq = new AtomicInteger();
+
+        WorkerThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, prefix + seq.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package es.diegosr.keycloak_scim_outbound.dispatch;
+
+import es.diegosr.keycloak_scim_outbound.http.ScimEndpoint;
+import es.diegosr.keycloak_scim_outbound.util.ScimUser;
+
+/**
+ * One provisioning operation for one SCIM target.
+ * Everything the worker needs is captured up front, so jobs never touch the
+ * KeycloakSession that produced them.
+ *
+ * @param action       what to do on the target
+ * @param origin       short label for logs (e.g. "UPDATE", "GROUP ADD group=staff")
+ * @param scimId       SCIM id remembered on the Keycloak user for this target, or null if unknown
+ * @param user         snapshot of the user, or null when the user model is gone
+ * @param storedHash   hex content hash remembered on the Keycloak user for this target
+ *                     ({@link ScimProvisioner#hashAttribute}), or null; not kept by the outbox
+ */
+public record ScimJob(Action action,
+                      String origin,
+                      String realmId,
+                      String realmName,
+                      String targetId,
+                      String targetName,
+                      ScimEndpoint endpoint,
+                      String userId,
+                      String scimUserName,
+                      String scimId,
+                      ScimUser user,
+                      String storedHash) {
+
+    /** A job without a stored content hash. */
+    public ScimJob(Action action, String origin, String realmId, String realmName, String targetId, String targetName,
+                   ScimEndpoint endpoint, String userId, String scimUserName, String scimId, ScimUser user) {
+        this(action, origin, realmId, realmName, targetId, targetName, endpoint, userId, scimUserName, scimId, user, null);
+    }
+
+    public enum Action {
+        /** Create the SCIM user, or patch it if it already exists. */
+        CREATE,
+        /** Patch the SCIM user, or create it if it does not exist yet. */
+        UPDATE,
+        /** Deactivate the SCIM user (active=false). */
+        DELETE
+    }
+}
@@ -0,0 +1,436 @@
+package es.diegosr.keycloak_scim_outbound.dispatch;
+
+import es.diegosr.keycloak_scim_outbound.http.CircuitOpenException;
+import es.diegosr.keycloak_scim_outbound.http.ScimCapabilities;
+import es.diegosr.keycloak_scim_outbound.http.ScimClient;
+import es.diegosr.keycloak_scim_outbound.http.ScimClientRegistry;
+import es.diegosr.keycloak_scim_outbound.outbox.DeadLetters;
+import es.diegosr.keycloak_scim_outbound.util.ScimMapper;
+import es.diegosr.keycloak_scim_outbound.util.ScimUser;
+import es.diegosr.keycloak_scim_outbound.util.XxHash64;
+
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+/**
+ * Executes a single {@link ScimJob} against its target.
+ * Jobs are chains of asynchronous SCIM calls: no thread waits while a request is on the
+ * wire or a retry is pending, so a few workers can keep many slow requests in flight.
+ *
+ * The SCIM id of each provisioned user is remembered as a per-target user attribute
+ * ({@link #idAttribute(String)}), so later jobs PATCH /Users/{id} directly, even after a
+ * restart or on another cluster node.
+ *
+ * How a user is written depends on the target's advertised capabilities
+ * ({@link ScimCapabilities}): PATCH when supported, otherwise a full PUT. A PATCH only carries
+ * the fields that changed since the state this node last pushed to the target (see
+ * {@link ScimClient#lastPushed(String)}); when nothing changed no request is sent at all. That
+ * state is only used when it is known to be what the target holds ({@link #deltaBase}),
+ * otherwise the PATCH carries every field.
+ *
+ * The xxHash64 of the last payload pushed for each user is kept per target (and, with
+ * {@code persistContentHash}, in the user attribute {@link #hashAttribute(String)}, which then
+ * takes precedence), so an UPDATE that changes nothing the target receives is never sent.
+ *
+ * Jobs that fail for good (retries exhausted, or a 4xx the flow cannot recover from) are
+ * stored as {@link DeadLetters} so they can be replayed once the target is fixed. Jobs cut
+ * short by the target's circuit breaker are not failures: they are handed back to the
+ * dispatcher ({@code retryLater}) to run again once the target is available.
+ */
+public class ScimProvisioner {
+    private final KeycloakSessionFactory sessionFactory;
+    private final ScimClientRegistry clients;
+    private final DeadLetters deadLetters;
+    /** Runs the blocking bits (Keycloak transactions) off the HTTP client's threads. */
+    private final Executor blockingExecutor;
+    private final Consumer<ScimJob> retryLater;
+    private final boolean persistContentHash;
+    /** Other nodes run jobs of the same users (database outbox). */
+    private final boolean sharedQueue;
+
+    public ScimProvisioner(KeycloakSessionFactory sessionFactory, ScimClientRegistry clients,
+                           DeadLetters deadLetters, Executor blockingExecutor, Consumer<ScimJob> retryLater,
+                           boolean persistContentHash, boolean sharedQueue) {
+        this.sessionFactory = sessionFactory;
+        this.clients = clients;
+        this.deadLetters = deadLetters;
+        this.blockingExecutor = blockingExecutor;
+        this.retryLater = retryLater;
+        this.persistContentHash = persistContentHash;
+        this.sharedQueue = sharedQueue;
+    }
+
+    /** User attribute holding the SCIM id of the user on target {@code targetId}. */
+    public static String idAttribute(String targetId) {
+        return "scim.id." + targetId;
+    }
+
+    /** User attribute holding the hex content hash of what target {@code targetId} last received. */
+    public static String hashAttribute(String targetId) {
+        return "scim.hash." + targetId;
+    }
+
+    /** Hash of the full SCIM resource a user snapshot maps to. */
+    public static long contentHash(ScimUser user) {
+        return XxHash64.hash(ScimMapper.buildCreateUser(user));
+    }
+
+    /**
+     * True if the job is an UPDATE whose payload the target already received (same content hash).
+     * With {@code persistContentHash} the hash the job carries from the user's
+     * {@link #hashAttribute(String)} decides: it is shared by every node, while this node's own
+     * hash may predate another node's push. The local hash can only veto the skip (this node's
+     * previous push may not have reached the attribute the job was built from yet). Without the
+     * attribute, the local hash decides. Runs on a worker, once the user's previous job is done.
+     */
+    public boolean unchanged(ScimJob job) {
+        if (job.action() != ScimJob.Action.UPDATE || job.user() == null) return false;
+        long now = contentHash(job.user());
+        Long local = client(job).pushedHash(job.userId());
+        if (!persistContentHash) return local != null && local == now;
+
+        Long stored = parseHash(job.storedHash());
+        return stored != null && stored == now && (local == null || local == now);
+    }
+
+    /** The hex hash of a {@link #hashAttribute(String)} value, or null if there is none (or it is not ours). */
+    static Long parseHash(String hex) {
+        if (hex == null) return null;
+        try {
+            return Long.parseUnsignedLong(hex.trim(), 16);
+        } catch (NumberFormatException e) {
+            return null; // corrupted: ignore, the next push overwrites it
+        }
+    }
+
+    /** Runs the job; the returned future completes (never exceptionally) once it is done and logged. */
+    public CompletableFuture<Void> execute(ScimJob job) {
+        CompletableFuture<Boolean> result;
+        try {
+            ScimClient client = client(job);
+            result = switch (job.action()) {
+                case CREATE, UPDATE -> upsertUser(client, job);
+                case DELETE -> deactivateUser(client, job).thenApply(r -> true);
+            };
+        } catch (RuntimeException e) {
+            result = CompletableFuture.failedFuture(e);
+        }
+
+        return result.handle((changed, e) -> {
+            // Keep the base of the next delta PATCH in step with what the target holds; unchanged keeps it as is.
+            if (e != null || job.action() == ScimJob.Action.DELETE) forgetOrRemember(job, null);
+            else if (Boolean.TRUE.equals(changed)) forgetOrRemember(job, job.user());
+            if (e != null) {
+                Throwable cause = (e instanceof CompletionException && e.getCause() != null) ? e.getCause() : e;
+                if (cause instanceof CircuitOpenException) {
+                    logInfo("SCIM", job.targetName(), "%s targetUserName=%s PARKED: %s", job.origin(), job.scimUserName(), cause.getMessage());
+                    retryLater.accept(job);
+                    return null;
+                }
+                logErr("SCIM", job.targetName(), "%s targetUserName=%s ERROR: %s", job.origin(), job.scimUserName(), cause.getMessage());
+                deadLetter(job, cause);
+            } else {
+                logOutcome(job, changed);
+            }
+            return null;
+        });
+    }
+
+    /** False while the job's target is refusing requests (circuit breaker open). */
+    public boolean available(ScimJob job) {
+        return client(job).available();
+    }
+
+    /* ===== Bulk (RFC 7644 §3.7) ===== */
+
+    /**
+     * Capabilities of the job's target, probed without blocking the caller: the future completes
+     * with {@link ScimCapabilities#NONE} if they cannot be had.
+     */
+    public CompletableFuture<ScimCapabilities> capabilities(ScimJob job) {
+        try {
+            return client(job).capabilitiesAsync();
+        } catch (RuntimeException e) {
+            return done(ScimCapabilities.NONE); // no client for the target: execute() reports it
+        }
+    }
+
+    /** How many jobs of a target with {@code caps} may share one POST /Bulk; below 2 means no bulk. */
+    public static int bulkCapacity(ScimCapabilities caps) {
+        return caps.canBulk() ? caps.bulkMaxOperations() : 0;
+    }
+
+    /**
+     * True if the job maps to one bulk operation without a prior lookup: a PATCH, PUT or
+     * deactivation when the SCIM id is already known, or a POST for a CREATE. Nothing is
+     * serialized; everything else goes through {@link #execute(ScimJob)}.
+     */
+    public boolean bulkEligible(ScimJob job) {
+        if (job.action() != ScimJob.Action.DELETE && job.user() == null) return false;
+        if (job.action() == ScimJob.Action.CREATE) return true;
+        return job.scimId() != null || client(job).cachedUserId(job.scimUserName()).isPresent();
+    }
+
+    /**
+     * The bulk operation of a {@link #bulkEligible} job, or null if it needs no request at all
+     * (nothing changed since the last push) or turned out to need a lookup after all.
+     */
+    public ScimClient.BulkOperation bulkOperation(ScimJob job, ScimCapabilities caps, String bulkId) {
+        ScimClient client = client(job);
+        String id = (job.scimId() != null) ? job.scimId() : client.cachedUserId(job.scimUserName()).orElse(null);
+
+        Write w;
+        if (job.action() == ScimJob.Action.DELETE) {
+            if (id == null) return null;
+            w = Write.deactivate(caps, job);
+        } else if (job.user() == null) {
+            return null;
+        } else if (id != null) {
+            w = Write.upsert(caps, deltaBase(client, job), job.user());
+            if (w == null) return null; // nothing changed: execute() logs the no-op without a request
+        } else if (job.action() == ScimJob.Action.CREATE) {
+            return new ScimClient.BulkOperation(bulkId, "POST", "/Users", ScimMapper.buildCreateUser(job.user()));
+        } else {
+            return null;
+        }
+        return new ScimClient.BulkOperation(bulkId, w.method(), "/Users/" + id, w.body());
+    }
+
+    /**
+     * Execute jobs of a single target through POST /Bulk; {@code ops} holds each job's
+     * {@link #bulkOperation}, built once by the caller (null runs that job on its own). Operations
+     * the target rejected (e.g. a 409 on create, a 404 on a stale id) are replayed through the
+     * single-resource path, which already knows how to recover from those.
+     */
+    public CompletableFuture<Void> executeBulk(List<ScimJob> jobs, List<ScimClient.BulkOperation> ops) {
+        Map<String, ScimJob> byBulkId = new HashMap<>();
+        List<ScimClient.BulkOperation> sent = new ArrayList<>();
+        List<CompletableFuture<Void>> done = new ArrayList<>();
+        for (int i = 0; i < jobs.size(); i++) {
+            ScimClient.BulkOperation op = ops.get(i);
+            if (op == null) { done.add(execute(jobs.get(i))); continue; }
+            byBulkId.put(op.bulkId(), jobs.get(i));
+            sent.add(op);
+        }
+        if (sent.size() < 2) {
+            sent.forEach(op -> done.add(execute(byBulkId.get(op.bulkId()))));
+            return all(done);
+        }
+
+        ScimClient client = client(jobs.get(0));
+        done.add(client.bulkAsync(sent).thenCompose(results -> {
+            List<CompletableFuture<Void>> retries = new ArrayList<>();
+            for (ScimClient.BulkOperation op : sent) {
+                ScimJob job = byBulkId.get(op.bulkId());
+                ScimClient.BulkResult r = results.get(op.bulkId());
+                if (r == null || !r.ok()) {
+                    retries.add(execute(job));
+                    continue;
+                }
+                if ("POST".equals(op.method())) rememberId(job, r.id());
+                forgetOrRemember(job, job.action() != ScimJob.Action.DELETE ? job.user() : null);
+                logOutcome(job, true);
+            }
+            return all(retries);
+        }));
+        return all(done);
+    }
+
+    private static void logOutcome(ScimJob job, boolean changed) {
+        if (changed) {
+            logInfo("SCIM", job.targetName(), "%s targetUserName=%s realm=%s OK", job.origin(), job.scimUserName(), job.realmName());
+        } else {
+            logInfo("SCIM", job.targetName(), "%s targetUserName=%s realm=%s NO-OP (not found / not changed)", job.origin(), job.scimUserName(), job.realmName());
+        }
+    }
+
+    /**
+     * Completes with true if we successfully created or patched the SCIM user.
+     */
+    private CompletableFuture<Boolean> upsertUser(ScimClient scim, ScimJob job) {
+        final ScimUser user = job.user();
+        if (user == null) return done(false);
+
+        return scim.capabilitiesAsync().thenCompose(caps -> {
+            final Write write = Write.upsert(caps, deltaBase(scim, job), user);
+            if (write == null) return done(false); // the target already holds this state
+            return write(scim, job, write).thenCompose(patched -> {
+                if (patched.isPresent()) return done(patched.get());
+
+                return scim.createUserAsync(user.userName(), ScimMapper.buildCreateUser(user)).thenCompose(created -> {
+                    if (created.isPresent()) {
+                        rememberId(job, created.get());
+                        return done(true);
+                    }
+                    // Creation failed (likely 409). Re-resolve and PATCH.
+                    return write(scim, job, write).thenApply(r -> r.orElse(false));
+                });
+            });
+        });
+    }
+
+    private CompletableFuture<Optional<Boolean>> deactivateUser(ScimClient scim, ScimJob job) {
+        return scim.capabilitiesAsync().thenCompose(caps -> write(scim, job, Write.deactivate(caps, job)));
+    }
+
+    /**
+     * What this node last pushed for the job's user, if it is safe to send only the difference to it;
+     * null for a full write. With {@code persistContentHash} the state must hash to what the user's
+     * attribute says the target holds: another node may have pushed since. Without it the state is
+     * trusted only when no other node runs this user's jobs.
+     */
+    private ScimUser deltaBase(ScimClient client, ScimJob job) {
+        ScimUser base = client.lastPushed(job.userId());
+        if (base == null) return null;
+        if (persistContentHash) {
+            Long stored = parseHash(job.storedHash());
+            return (stored != null && stored == contentHash(base)) ? base : null;
+        }
+        return sharedQueue ? null : base;
+    }
+
+    /** A write to an existing SCIM user: PATCH with a PatchOp, or PUT with the full resource. */
+    private record Write(String method, byte[] body) {
+        /** Null if {@code before} (the {@link #deltaBase}, may be null) already equals {@code user}. */
+        static Write upsert(ScimCapabilities caps, ScimUser before, ScimUser user) {
+            if (!caps.patchSupported()) return new Write("PUT", ScimMapper.buildReplaceUser(user));
+            if (before == null) return new Write("PATCH", ScimMapper.buildPatchUser(user));
+            byte[] delta = ScimMapper.buildPatchUser(before, user);
+            return (delta != null) ? new Write("PATCH", delta) : null;
+        }
+
+        static Write deactivate(ScimCapabilities caps, ScimJob job) {
+            if (caps.patchSupported()) return new Write("PATCH", ScimMapper.buildDeactivatePatch());
+            ScimUser user = (job.user() != null) ? job.user() : new ScimUser(job.scimUserName(), null, null, null, false);
+            return new Write("PUT", ScimMapper.buildReplaceUser(user.deactivated()));
+        }
+
+        CompletableFuture<Boolean> sendTo(ScimClient scim, String id) {
+            return "PUT".equals(method) ? scim.replaceUserAsync(id, body) : scim.patchUserAsync(id, body);
+        }
+    }
+
+    /**
+     * Write the job's user (PATCH or PUT); empty if the target has no such user.
+     * The id remembered on the Keycloak user is tried first (no lookup at all). Otherwise, or if
+     * it failed, the id is resolved by userName, usually from the client's cache; if that one
+     * was stale (the write got a 404 and evicted it) it is resolved once more against the target.
+     */
+    private CompletableFuture<Optional<Boolean>> write(ScimClient scim, ScimJob job, Write write) {
+        CompletableFuture<Boolean> direct = (job.scimId() != null) ? write.sendTo(scim, job.scimId()) : done(false);
+        return direct.thenCompose(directOk -> {
+            if (directOk) return done(Optional.of(true));
+
+            return scim.findUserIdByUserNameAsync(job.scimUserName()).thenCompose(id -> {
+                if (id.isEmpty()) return done(Optional.<Boolean>empty());
+                CompletableFuture<Boolean> byName = id.get().equals(job.scimId()) ? done(false) : write.sendTo(scim, id.get());
+                return byName.thenCompose(ok -> {
+                    if (ok) {
+                        rememberId(job, id.get());
+                        return done(Optional.of(true));
+                    }
+                    return scim.findUserIdByUserNameAsync(job.scimUserName()).thenCompose(fresh -> {
+                        if (fresh.isEmpty()) return done(Optional.<Boolean>empty());
+                        if (fresh.equals(id)) return done(Optional.of(false)); // same id: a real failure, not a stale id
+                        return write.sendTo(scim, fresh.get()).thenApply(freshOk -> {
+                            if (freshOk) rememberId(job, fresh.get());
+                            return Optional.of(freshOk);
+                        });
+                    });
+                });
+            });
+        });
+    }
+
+    /** Store the SCIM id on the Keycloak user (own transaction, off the HTTP threads) if it differs from what the job carried. */
+    private void rememberId(ScimJob job, String scimId) {
+        if (scimId == null || scimId.isBlank() || Objects.equals(scimId, job.scimId())) return;
+        CompletableFuture.runAsync(() ->
+                KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+                    RealmModel realm = session.realms().getRealm(job.realmId());
+                    UserModel user = (realm != null) ? session.users().getUserById(realm, job.userId()) : null;
+                    if (user != null) user.setSingleAttribute(idAttribute(job.targetId()), scimId);
+                }), blockingExecutor)
+            .exceptionally(e -> {
+                logErr("SCIM", job.targetName(), "Could not store SCIM id for user=%s: %s", job.scimUserName(), e.getMessage());
+                return null;
+            });
+    }
+
+    /**
+     * Base of the next delta PATCH and content-hash check: what the target now holds for the
+     * job's user, or null if unsure.
+     */
+    private void forgetOrRemember(ScimJob job, ScimUser now) {
+        Long hash = (now != null) ? contentHash(now) : null;
+        try {
+            ScimClient client = client(job);
+            client.pushed(job.userId(), now);
+            client.pushedHash(job.userId(), hash);
+        } catch (RuntimeException ignored) {
+            return; // no client for the target (removed meanwhile): nothing to keep
+        }
+        if (persistContentHash) rememberHash(job, hash);
+    }
+
+    /** Store (or clear) the content hash on the Keycloak user, like {@link #rememberId}. */
+    private void rememberHash(ScimJob job, Long hash) {
+        CompletableFuture.runAsync(() ->
+                KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+                    RealmModel realm = session.realms().getRealm(job.realmId());
+                    UserModel user = (realm != null) ? session.users().getUserById(realm, job.userId()) : null;
+                    if (user == null) return;
+                    if (hash != null) user.setSingleAttribute(hashAttribute(job.targetId()), Long.toHexString(hash));
+                    else user.removeAttribute(hashAttribute(job.targetId()));
+                }), blockingExecutor)
+            .exceptionally(e -> {
+                logErr("SCIM", job.targetName(), "Could not store content hash for user=%s: %s", job.scimUserName(), e.getMessage());
+                return null;
+            });
+    }
+
+    /** Keep a job that failed for good (own transaction, off the HTTP threads). */
+    void deadLetter(ScimJob job, Throwable failure) {
+        CompletableFuture.runAsync(() -> deadLetters.store(job, failure), blockingExecutor)
+            .exceptionally(e -> {
+                logErr("SCIM", job.targetName(), "Could not store dead letter for user=%s: %s", job.scimUserName(), e.getMessage());
+                return null;
+            });
+    }
+
+    private ScimClient client(ScimJob job) {
+        return clients.get(job.targetId(), job.endpoint());
+    }
+
+    private static <T> CompletableFuture<T> done(T value) {
+        return CompletableFuture.completedFuture(value);
+    }
+
+    private static CompletableFuture<Void> all(List<CompletableFuture<Void>> futures) {
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]));
+    }
+
+    /* ===== timestamped logging helpers ===== */
+    private static String now() { return java.time.OffsetDateTime.now().toString(); }
+    static void logInfo(String subsystem, String target, String fmt, Object... args) {
+        System.out.printf("%s [keycloak-scim-outbound][%s%s] %s%n",
+                now(), subsystem, (target != null ? " " + target : ""), String.format(fmt, args));
+    }
+    static void logErr(String subsystem, String target, String fmt, Object... args) {
+        System.err.printf("%s [keycloak-scim-outbound][%s%s] %s%n",
+                now(), subsystem, (target != null ? " " + target : ""), String.format(fmt, args));
+    }
+}
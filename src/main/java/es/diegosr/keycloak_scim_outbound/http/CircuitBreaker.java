@@ -0,0 +1,98 @@
+package es.diegosr.keycloak_scim_outbound.http;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Closed / open / half-open breaker over a rolling window of the last {@value #WINDOW} exchanges.
+ *
+ * Closed: everything goes through; once at least {@value #MIN_CALLS} outcomes are known and half
+ * or more of the window failed, the breaker opens. Open: requests are refused for a cool-down
+ * that doubles on every failed probe (up to {@link #MAX_OPEN_NANOS}). Half-open: the first
+ * caller after the cool-down starts a single probe; success closes the breaker, failure opens it again.
+ */
+final class CircuitBreaker {
+    enum State { CLOSED, OPEN, HALF_OPEN }
+
+    static final int WINDOW = 20;
+    static final int MIN_CALLS = 10;
+    private static final long MIN_OPEN_NANOS = 30_000_000_000L;
+    private static final long MAX_OPEN_NANOS = 300_000_000_000L;
+
+    private final Supplier<CompletableFuture<Boolean>> probe;
+    private final Consumer<State> onTransition;
+
+    private final boolean[] failures = new boolean[WINDOW];
+    private int next;
+    private int recorded;
+    private int failed;
+
+    private State state = State.CLOSED;
+    private long openUntil;
+    private long openFor = MIN_OPEN_NANOS;
+
+    /**
+     * @param probe        health check run in half-open state; completes with true if the target is healthy
+     * @param onTransition called (outside the lock) with the new state on every change
+     */
+    CircuitBreaker(Supplier<CompletableFuture<Boolean>> probe, Consumer<State> onTransition) {
+        this.probe = probe;
+        this.onTransition = onTransition;
+    }
+
+    /** True if a request may be sent now. May start the half-open probe. */
+    boolean allowRequest() {
+        synchronized (this) {
+            if (state == State.CLOSED) return true;
+            if (state == State.HALF_OPEN || System.nanoTime() < openUntil) return false;
+            state = State.HALF_OPEN;
+        }
+        onTransition.accept(State.HALF_OPEN);
+        CompletableFuture<Boolean> check;
+        try {
+            check = probe.get();
+        } catch (RuntimeException e) {
+            check = CompletableFuture.completedFuture(false);
+        }
+        check.handle((ok, e) -> e == null && Boolean.TRUE.equals(ok)).thenAccept(this::probed);
+        return false;
+    }
+
+    /** Outcome of one exchange; only counted while closed. */
+    void record(boolean success) {
+        synchronized (this) {
+            if (state != State.CLOSED) return;
+            if (recorded == WINDOW && failures[next]) failed--;
+            failures[next] = !success;
+            if (!success) failed++;
+            next = (next + 1) % WINDOW;
+            if (recorded < WINDOW) recorded++;
+            if (recorded < MIN_CALLS || failed * 2 < recorded) return;
+            open();
+        }
+        onTransition.accept(State.OPEN);
+    }
+
+    private void probed(boolean healthy) {
+        State now;
+        synchronized (this) {
+            if (healthy) {
+                state = State.CLOSED;
+                openFor = MIN_OPEN_NANOS;
+                recorded = next = failed = 0;
+            } else {
+                openFor = Math.min(openFor * 2, MAX_OPEN_NANOS);
+                open();
+            }
+            now = state;
+        }
+        onTransition.accept(now);
+    }
+
+    /** Caller holds the lock. */
+    private void open() {
+        state = State.OPEN;
+        openUntil = System.nanoTime() + openFor;
+    }
+}
@@ -0,0 +1,13 @@
+package es.diegosr.keycloak_scim_outbound.http;
+
+/**
+ * The target's circuit breaker is open: the request was not sent. Not a failure of the job
+ * itself; callers should keep the job and try again once {@link ScimClient#available()}.
+ */
+public class CircuitOpenException extends ScimException {
+    private static final long serialVersionUID = 1L;
+
+    public CircuitOpenException(String baseUrl) {
+        super("circuit open for " + baseUrl, -1, "");
+    }
+}
@@ -0,0 +1,93 @@
+package es.diegosr.keycloak_scim_outbound.http;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Non-blocking, adaptive cap on concurrent requests to one target.
+ * {@link #acquire()} returns a future that completes once a slot is free, so callers
+ * queue up as pending futures instead of parking threads.
+ *
+ * The cap follows AIMD: it starts low and grows by about one slot per round trip while
+ * latency stays close to the target's no-load latency, and shrinks by 10% (at most once per
+ * round trip) when a request is throttled (429), fails (I/O error, 5xx) or takes more than
+ * twice as long. It never exceeds the configured maximum nor drops below one.
+ */
+final class InFlightLimiter {
+    private static final int INITIAL_LIMIT = 4;
+    private static final double BACKOFF = 0.9;
+    private static final double LATENCY_TOLERANCE = 2.0;
+    /** No-load latency is the minimum of a window of this many samples, refreshed each window. */
+    private static final int BASELINE_SAMPLES = 100;
+
+    private final int max;
+    private final ArrayDeque<CompletableFuture<Void>> waiters = new ArrayDeque<>();
+    private int inFlight;
+    private double limit;
+
+    private long baselineNanos;
+    private long windowMinNanos = Long.MAX_VALUE;
+    private int samples;
+    private long lastDecreaseAt;
+
+    InFlightLimiter(int max) {
+        this.max = Math.max(1, max);
+        this.limit = Math.min(this.max, INITIAL_LIMIT);
+    }
+
+    CompletableFuture<Void> acquire() {
+        synchronized (this) {
+            if (inFlight < (int) limit) {
+                inFlight++;
+                return CompletableFuture.completedFuture(null);
+            }
+            CompletableFuture<Void> f = new CompletableFuture<>();
+            waiters.add(f);
+            return f;
+        }
+    }
+
+    /**
+     * Frees a slot and adapts the limit to how the request went; hands free slots to the oldest waiters.
+     *
+     * @param rttNanos time the request held its slot
+     * @param dropped  true if the target failed or throttled the request
+     */
+    void release(long rttNanos, boolean dropped) {
+        List<CompletableFuture<Void>> ready = new ArrayList<>();
+        synchronized (this) {
+            inFlight--;
+            adapt(rttNanos, dropped);
+            while (inFlight < (int) limit && !waiters.isEmpty()) {
+                inFlight++;
+                ready.add(waiters.poll());
+            }
+        }
+        ready.forEach(f -> f.complete(null));
+    }
+
+    /** Caller holds the lock. */
+    private void adapt(long rttNanos, boolean dropped) {
+        if (!dropped) {
+            windowMinNanos = Math.min(windowMinNanos, rttNanos);
+            if (baselineNanos == 0) baselineNanos = rttNanos;
+            if (++samples >= BASELINE_SAMPLES) {
+                baselineNanos = windowMinNanos;
+                windowMinNanos = Long.MAX_VALUE;
+                samples = 0;
+            }
+        }
+
+        long now = System.nanoTime();
+        if (dropped || rttNanos > LATENCY_TOLERANCE * baselineNanos) {
+            if (now - lastDecreaseAt < baselineNanos) return; // one decrease per round trip
+            limit = Math.max(1, limit * BACKOFF);
+            lastDecreaseAt = now;
+        } else if (inFlight + 1 >= limit / 2) {
+            // Only grow while the limit is actually in use.
+            limit = Math.min(max, limit + 1 / limit);
+        }
+    }
+}
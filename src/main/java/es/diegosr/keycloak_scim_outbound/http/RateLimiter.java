@@ -0,0 +1,69 @@
+package es.diegosr.keycloak_scim_outbound.http;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Non-blocking token bucket: {@code perSecond} requests per second on average, bursts of up
+ * to {@code burst}. Like {@link InFlightLimiter}, {@link #acquire()} hands out futures, so
+ * requests over the rate wait in a FIFO queue (woken by a timer) instead of sleeping threads.
+ */
+final class RateLimiter {
+    private final double perNano;
+    private final double burst;
+    private final ArrayDeque<CompletableFuture<Void>> waiters = new ArrayDeque<>();
+    private double tokens;
+    private long refilledAt = System.nanoTime();
+    private boolean drainScheduled;
+
+    RateLimiter(int perSecond, int burst) {
+        this.perNano = perSecond / 1e9;
+        this.burst = Math.max(1, burst);
+        this.tokens = this.burst;
+    }
+
+    CompletableFuture<Void> acquire() {
+        synchronized (this) {
+            refill();
+            if (waiters.isEmpty() && tokens >= 1) {
+                tokens -= 1;
+                return CompletableFuture.completedFuture(null);
+            }
+            CompletableFuture<Void> f = new CompletableFuture<>();
+            waiters.add(f);
+            scheduleDrain();
+            return f;
+        }
+    }
+
+    /** Wakes as many waiters as there are tokens, then sleeps (on a timer) until the next one. */
+    private void drain() {
+        ArrayDeque<CompletableFuture<Void>> ready = new ArrayDeque<>();
+        synchronized (this) {
+            drainScheduled = false;
+            refill();
+            while (tokens >= 1 && !waiters.isEmpty()) {
+                tokens -= 1;
+                ready.add(waiters.poll());
+            }
+            if (!waiters.isEmpty()) scheduleDrain();
+        }
+        ready.forEach(f -> f.complete(null));
+    }
+
+    /** Caller holds the lock. */
+    private void scheduleDrain() {
+        if (drainScheduled) return;
+        drainScheduled = true;
+        long waitNanos = (long) Math.ceil((1 - tokens) / perNano);
+        CompletableFuture.delayedExecutor(Math.max(1, waitNanos), TimeUnit.NANOSECONDS).execute(this::drain);
+    }
+
+    /** Caller holds the lock. */
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - refilledAt) * perNano);
+        refilledAt = now;
+    }
+}
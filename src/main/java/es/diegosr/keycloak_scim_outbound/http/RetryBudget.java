@@ -0,0 +1,54 @@
+package es.diegosr.keycloak_scim_outbound.http;
+
+/**
+ * Caps retries to one target at a share of its recent traffic, so retries cannot multiply
+ * the load on a target that is already struggling.
+ *
+ * Over the last {@value #WINDOW_SECONDS} seconds, retries may add up to {@link #RATIO} of the
+ * first attempts, with a floor of {@value #MIN_PER_SECOND} per second so a quiet target still
+ * gets its occasional retry.
+ */
+final class RetryBudget {
+    static final double RATIO = 0.2;
+    static final int MIN_PER_SECOND = 5;
+    static final int WINDOW_SECONDS = 10;
+
+    /** Per-second buckets, indexed by epoch second modulo the window. */
+    private final long[] second = new long[WINDOW_SECONDS];
+    private final int[] requests = new int[WINDOW_SECONDS];
+    private final int[] retries = new int[WINDOW_SECONDS];
+
+    /** A first attempt was sent. */
+    synchronized void requested() {
+        requests[bucket()]++;
+    }
+
+    /** True (and counted) if one more retry fits in the budget. */
+    synchronized boolean tryRetry() {
+        int now = bucket();
+        long sent = 0, retried = 0;
+        for (int i = 0; i < WINDOW_SECONDS; i++) {
+            sent += requests[i];
+            retried += retries[i];
+        }
+        if (retried >= Math.max(MIN_PER_SECOND * WINDOW_SECONDS, RATIO * sent)) return false;
+        retries[now]++;
+        return true;
+    }
+
+    /** Index of the current second's bucket, clearing it if it still holds an older second. Caller holds the lock. */
+    private int bucket() {
+        long now = System.nanoTime() / 1_000_000_000L;
+        int i = (int) Math.floorMod(now, (long) WINDOW_SECONDS);
+        if (second[i] != now) {
+            // Buckets are only cleared when reused, so also clear every second skipped since the last call.
+            for (int j = 0; j < WINDOW_SECONDS; j++) {
+                if (now - second[j] >= WINDOW_SECONDS) { requests[j] = 0; retries[j] = 0; }
+            }
+            second[i] = now;
+            requests[i] = 0;
+            retries[i] = 0;
+        }
+        return i;
+    }
+}
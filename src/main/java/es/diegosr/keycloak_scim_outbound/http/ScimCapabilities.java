@@ -0,0 +1,79 @@
+package es.diegosr.keycloak_scim_outbound.http;
+
+import es.diegosr.keycloak_scim_outbound.util.Json;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * What a target advertises in /ServiceProviderConfig (RFC 7643 §5).
+ * Cached per target by {@link ScimClient#capabilitiesAsync()} and used to pick the cheapest
+ * way to write: PATCH vs full PUT, POST /Bulk vs single requests.
+ *
+ * @param bulkMaxOperations  max operations per POST /Bulk request
+ * @param bulkMaxPayloadSize max size of a POST /Bulk request body, in bytes
+ * @param filterMaxResults   max resources a filtered search returns (0 = not advertised)
+ * @param authSchemes        lower-cased {@code authenticationSchemes[].type} values
+ */
+public record ScimCapabilities(boolean patchSupported,
+                               boolean bulkSupported,
+                               int bulkMaxOperations,
+                               int bulkMaxPayloadSize,
+                               boolean filterSupported,
+                               int filterMaxResults,
+                               boolean etagSupported,
+                               List<String> authSchemes) {
+
+    /**
+     * Used when the target cannot be probed: behave as before discovery existed
+     * (PATCH and filtered search assumed, no bulk).
+     */
+    public static final ScimCapabilities NONE = new ScimCapabilities(true, false, 0, 0, true, 0, false, List.of());
+
+    /** True if batching through POST /Bulk is possible at all. */
+    public boolean canBulk() {
+        return bulkSupported && bulkMaxOperations > 1;
+    }
+
+    /** True unless the target lists its auth schemes and none of them takes a bearer token. */
+    public boolean acceptsBearer() {
+        return authSchemes.isEmpty() || authSchemes.stream().anyMatch(t -> t.contains("bearer") || t.contains("oauth"));
+    }
+
+    /** Parse a ServiceProviderConfig body; falls back to {@link #NONE} on anything unexpected. */
+    public static ScimCapabilities parse(String body) {
+        try {
+            Object cfg = Json.parse(body);
+            Object bulk = Json.get(cfg, "bulk");
+            Object filter = Json.get(cfg, "filter");
+            List<String> schemes = new ArrayList<>();
+            for (Object s : Json.list(Json.get(cfg, "authenticationSchemes"))) {
+                String type = Json.str(Json.get(s, "type"));
+                if (type != null) schemes.add(type.toLowerCase(Locale.ROOT));
+            }
+            return new ScimCapabilities(
+                    Json.bool(Json.path(cfg, "patch", "supported"), true),
+                    Json.bool(Json.get(bulk, "supported"), false),
+                    clamp(Json.num(Json.get(bulk, "maxOperations"), 0)),
+                    clamp(Json.num(Json.get(bulk, "maxPayloadSize"), 0)),
+                    Json.bool(Json.get(filter, "supported"), true),
+                    clamp(Json.num(Json.get(filter, "maxResults"), 0)),
+                    Json.bool(Json.path(cfg, "etag", "supported"), false),
+                    List.copyOf(schemes));
+        } catch (RuntimeException e) {
+            return NONE;
+        }
+    }
+
+    private static int clamp(long v) {
+        return (int) Math.max(0, Math.min(Integer.MAX_VALUE, v));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("patch=%s bulk=%s(maxOps=%d, maxPayload=%d) filter=%s(maxResults=%d) etag=%s auth=%s",
+                patchSupported, bulkSupported, bulkMaxOperations, bulkMaxPayloadSize,
+                filterSupported, filterMaxResults, etagSupported, authSchemes);
+    }
+}
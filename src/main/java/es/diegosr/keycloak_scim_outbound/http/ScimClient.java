@@ -1,149 +1,497 @@
 package es.diegosr.keycloak_scim_outbound.http;
 
+import es.diegosr.keycloak_scim_outbound.util.ExpiringCache;
+import es.diegosr.keycloak_scim_outbound.util.Json;
+import es.diegosr.keycloak_scim_outbound.util.JsonReader;
+import es.diegosr.keycloak_scim_outbound.util.JsonWriter;
+import es.diegosr.keycloak_scim_outbound.util.LruCache;
+import es.diegosr.keycloak_scim_outbound.util.ScimUser;
+
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
 import java.net.URLEncoder;
 import java.net.http.*;
 import java.nio.charset.StandardCharsets;
 import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
  * Minimal SCIM v2 client focused on Users resource.
+ * Instances are meant to be long-lived and shared (see {@link ScimClientRegistry}),
+ * so the underlying HttpClient keeps its pooled keep-alive connections between pushes.
+ * Resolved SCIM ids are cached per userName, so steady-state updates are a single PATCH.
+ *
+ * Every request goes through a non-blocking pipeline: {@code HttpClient.sendAsync}, at most
+ * an adaptive number of concurrent requests per target, up to {@link ScimEndpoint#maxInFlight()}
+ * (see {@link InFlightLimiter}; extra requests wait as pending futures), an optional {@link RateLimiter} for targets that publish a request rate
+ * limit, and retries scheduled on a timer instead of sleeping threads.
+ * Retries wait for the target's {@code Retry-After} when it sends one, use decorrelated
+ * jitter otherwise, and are limited by a per-target {@link RetryBudget}.
+ * User calls fail with a {@link ScimException} when the target keeps failing; the blocking
+ * methods simply wait on the async ones and report such failures as false / empty.
+ *
+ * A {@link CircuitBreaker} watches the exchanges: once half of the recent ones failed (I/O
+ * errors, timeouts, 5xx) no request is sent for a while and calls fail fast with
+ * {@link CircuitOpenException}; a single GET /ServiceProviderConfig then probes for recovery.
  */
-public class ScimClient {
+public class ScimClient implements AutoCloseable {
     private final HttpClient http;
+    private final ScimEndpoint endpoint;
     private final String baseUrl;
     private final String bearer;
     private final Duration requestTimeout;
     private final int maxRetries;
+    private final InFlightLimiter inFlight;
+    /** Null when the target has no rate limit. */
+    private final RateLimiter rate;
+    private final CircuitBreaker breaker;
+    private final RetryBudget retryBudget = new RetryBudget();
+
+    /** Decorrelated jitter bounds for retry delays. */
+    private static final long RETRY_BASE_MILLIS = 250;
+    private static final long RETRY_CAP_MILLIS = 5_000;
+    /** Longest Retry-After honored; a target asking for more gets its response returned instead. */
+    private static final long MAX_RETRY_AFTER_MILLIS = 60_000;
+
+    /** userName -> SCIM id. Evicted on 404 so a stale id is looked up again. */
+    private static final int ID_CACHE_SIZE = 10_000;
+    private static final Duration ID_CACHE_TTL = Duration.ofMinutes(10);
+    private final ExpiringCache<String, String> idCache = new ExpiringCache<>(ID_CACHE_SIZE, ID_CACHE_TTL);
+
+    /** Keycloak user id -> user state last written to this target, the base of delta PATCHes. Same bounds as the id cache. */
+    private final ExpiringCache<String, ScimUser> pushed = new ExpiringCache<>(ID_CACHE_SIZE, ID_CACHE_TTL);
+
+    /** Keycloak user id -> hash of the payload last written to this target; 8 bytes a user, so kept for many more users and without TTL. */
+    private static final int PUSHED_HASHES_SIZE = 100_000;
+    private final LruCache<String, Long> pushedHashes = new LruCache<>(PUSHED_HASHES_SIZE);
+
+    /** Last /ServiceProviderConfig probe; re-probed hourly, or after 5 min if it failed. */
+    private static final long CAPS_TTL_NANOS       = Duration.ofHours(1).toNanos();
+    private static final long CAPS_RETRY_TTL_NANOS = Duration.ofMinutes(5).toNanos();
+    private volatile CompletableFuture<ScimCapabilities> capabilities;
+    private volatile long capabilitiesExpireAt;
+    /** Set once the target answered 400 to a lookup with {@code attributes=id&count=1} and 2xx to the same lookup without it. */
+    private volatile boolean projectionRejected;
 
-    // Regex robusta para sacar el primer id dentro de Resources[ {... "id":"..."} ]
-    private static final Pattern RE_FIRST_ID_IN_RESOURCES = Pattern.compile(
-            "\"Resources\"\\s*:\\s*\\[.*?\\{[^}]*?\"id\"\\s*:\\s*\"([^\"]+)\"",
-            Pattern.DOTALL
-    );
     // Regex para UUID (v4 típico) por si el servidor lo incluye entre `backticks`
     private static final Pattern RE_UUID_IN_BACKTICKS = Pattern.compile("`([0-9a-fA-F\\-]{36})`");
 
     public ScimClient(String baseUrl, String bearer) {
-        this(baseUrl, bearer, Duration.ofSeconds(8), 3);
+        this(new ScimEndpoint(baseUrl, bearer, ScimEndpoint.DEFAULT_MAX_IN_FLIGHT));
+    }
+
+    public ScimClient(ScimEndpoint endpoint) {
+        this(endpoint, Duration.ofSeconds(8), 3);
     }
 
-    public ScimClient(String baseUrl, String bearer, Duration timeout, int maxRetries) {
-        this.baseUrl = trimTrailingSlash(baseUrl);
-        this.bearer = bearer;
+    public ScimClient(ScimEndpoint endpoint, Duration timeout, int maxRetries) {
+        this.endpoint = endpoint;
+        this.baseUrl = trimTrailingSlash(endpoint.baseUrl());
+        this.bearer = endpoint.token();
         this.requestTimeout = timeout != null ? timeout : Duration.ofSeconds(8);
         this.maxRetries = Math.max(0, maxRetries);
+        this.inFlight = new InFlightLimiter(endpoint.maxInFlight());
+        this.rate = endpoint.rateLimited() ? new RateLimiter(endpoint.requestsPerSecond(), endpoint.burst()) : null;
+        this.breaker = new CircuitBreaker(this::healthCheck, this::breakerChanged);
         this.http = HttpClient.newBuilder()
                 .connectTimeout(this.requestTimeout)
                 .version(HttpClient.Version.HTTP_1_1)
                 .build();
     }
 
-    public boolean smokeTest() {
+    /** True if this client was built for these settings (of any version). */
+    public boolean sameConfig(ScimEndpoint endpoint) {
+        return this.endpoint.sameSettings(endpoint);
+    }
+
+    /** Settings this client was built for. */
+    public ScimEndpoint endpoint() {
+        return endpoint;
+    }
+
+    /**
+     * Releases pooled connections without waiting: requests already sent complete normally.
+     * {@code HttpClient.shutdown()} only exists on Java 21+ (looked up reflectively, the extension
+     * is compiled for Java 17); older runtimes let GC reclaim the client.
+     */
+    @Override
+    public void close() {
         try {
-            HttpRequest req = baseRequestBuilder("/ServiceProviderConfig").GET().build();
-            HttpResponse<String> res = sendWithRetries(req);
-            return is2xx(res.statusCode());
-        } catch (Exception e) {
-            httpErr("smokeTest failed: %s", e.getMessage());
-            return false;
+            HttpClient.class.getMethod("shutdown").invoke(http);
+        } catch (NoSuchMethodException e) {
+            // Java 17: nothing to release explicitly
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            httpErr("shutdown failed: %s", e.getMessage());
         }
     }
 
-    /** Find user by userName and return SCIM id if present. */
+    /** False while the circuit breaker is open, i.e. requests to this target would fail fast. */
+    public boolean available() {
+        return breaker.allowRequest();
+    }
+
+    /* ======================= blocking API ======================= */
+
+    /** GET /ServiceProviderConfig; on success the advertised capabilities are cached. */
+    public boolean smokeTest() {
+        return probeAsync().join() != ScimCapabilities.NONE;
+    }
+
+    /** Find user by userName and return SCIM id if present (served from the id cache when possible). */
     public Optional<String> findUserIdByUserName(String userName) {
-        try {
-            String filter = String.format("userName eq \"%s\"", userName);
-            String query = "filter=" + urlEncode(filter);
-            HttpRequest req = baseRequestBuilder("/Users?" + query).GET().build();
-
-            HttpResponse<String> res = sendWithRetries(req);
-            if (is2xx(res.statusCode())) {
-                String body = res.body();
-                int total = JsonMini.totalResults(body);
-                httpInfo("GET /Users?%s -> %d totalResults=%d", query, res.statusCode(), total);
-                if (total > 0) {
-                    // Regex robusta dentro de Resources
-                    Matcher m = RE_FIRST_ID_IN_RESOURCES.matcher(body);
-                    if (m.find()) {
-                        return Optional.ofNullable(m.group(1));
-                    } else {
-                        httpErr("Could not extract user id from SCIM response (Resources present but no id found).");
+        return findUserIdByUserNameAsync(userName).exceptionally(e -> Optional.empty()).join();
+    }
+
+    /**
+     * Create SCIM user. On 201/200 returns the new SCIM id, taken from the Location header
+     * or the response body; the id is blank if the target sends neither (the next write looks
+     * it up by userName). Empty means the user was not created.
+     */
+    public Optional<String> createUser(String userName, byte[] jsonPayload) {
+        return createUserAsync(userName, jsonPayload).exceptionally(e -> Optional.empty()).join();
+    }
+
+    /** Patch SCIM user by id (RFC 7644 PatchOp). A 404 drops the id from the cache. */
+    public boolean patchUser(String id, byte[] jsonPatch) {
+        return patchUserAsync(id, jsonPatch).exceptionally(e -> false).join();
+    }
+
+    /** Replace SCIM user by id (PUT), for targets without PATCH support. A 404 drops the id from the cache. */
+    public boolean replaceUser(String id, byte[] jsonUser) {
+        return replaceUserAsync(id, jsonUser).exceptionally(e -> false).join();
+    }
+
+    public boolean deleteUser(String id) {
+        return deleteUserAsync(id).join();
+    }
+
+    /** SCIM id already known for this userName, without any network call. */
+    public Optional<String> cachedUserId(String userName) {
+        return Optional.ofNullable(idCache.get(userName));
+    }
+
+    /** State of a Keycloak user this client last wrote to the target, or null if not known (any more). */
+    public ScimUser lastPushed(String userId) {
+        return pushed.get(userId);
+    }
+
+    /** Record what the target now holds for a Keycloak user; null forgets it (next write is a full one). */
+    public void pushed(String userId, ScimUser user) {
+        if (user != null) pushed.put(userId, user);
+        else pushed.remove(userId);
+    }
+
+    /** Content hash of what this client last wrote for a Keycloak user, or null if not known. */
+    public Long pushedHash(String userId) {
+        return pushedHashes.get(userId);
+    }
+
+    /** Record (or, with null, forget) the content hash of what the target holds for a Keycloak user. */
+    public void pushedHash(String userId, Long hash) {
+        if (hash != null) pushedHashes.put(userId, hash);
+        else pushedHashes.remove(userId);
+    }
+
+    /* ======================= async API ======================= */
+    /* User calls fail with a ScimException once retries are exhausted or on an unexpected 4xx. */
+
+    /** Capabilities of the target, probed lazily and cached; concurrent callers share one probe. */
+    public CompletableFuture<ScimCapabilities> capabilitiesAsync() {
+        CompletableFuture<ScimCapabilities> caps = capabilities;
+        if (caps != null && (!caps.isDone() || capabilitiesExpireAt - System.nanoTime() > 0)) return caps;
+        synchronized (this) {
+            caps = capabilities;
+            if (caps == null || (caps.isDone() && capabilitiesExpireAt - System.nanoTime() <= 0)) {
+                caps = probeAsync();
+                capabilities = caps;
+            }
+            return caps;
+        }
+    }
+
+    /** Probe /ServiceProviderConfig; completes with {@link ScimCapabilities#NONE} if it failed. */
+    private CompletableFuture<ScimCapabilities> probeAsync() {
+        HttpRequest req = baseRequestBuilder("/ServiceProviderConfig").GET().build();
+        return sendAsync(req).handle((res, e) -> {
+            ScimCapabilities caps = ScimCapabilities.NONE;
+            if (e != null) {
+                httpErr("smokeTest failed: %s", cause(e).getMessage());
+            } else if (is2xx(res.statusCode())) {
+                caps = ScimCapabilities.parse(res.body());
+                httpInfo("GET /ServiceProviderConfig -> %d %s", res.statusCode(), caps);
+                if (!caps.acceptsBearer()) httpErr("Target does not advertise bearer/OAuth authentication (schemes=%s)", caps.authSchemes());
+                if (!caps.filterSupported()) httpErr("Target does not advertise filter support; userName lookups may fail");
+            } else {
+                httpErr("GET /ServiceProviderConfig -> %d %s", res.statusCode(), safeBody(res));
+            }
+            capabilitiesExpireAt = System.nanoTime() + (caps != ScimCapabilities.NONE ? CAPS_TTL_NANOS : CAPS_RETRY_TTL_NANOS);
+            return caps;
+        });
+    }
+
+    /**
+     * Filtered search for the user's SCIM id. Asks for a minimal projection
+     * ({@code attributes=id&count=1}) so the target does not serialize whole resources, unless
+     * the target has rejected that before; a 400 on the projected query falls back to the plain one,
+     * and projection is turned off for good only if that plain lookup succeeds.
+     */
+    public CompletableFuture<Optional<String>> findUserIdByUserNameAsync(String userName) {
+        String cached = idCache.get(userName);
+        if (cached != null) return CompletableFuture.completedFuture(Optional.of(cached));
+
+        return capabilitiesAsync().thenCompose(caps -> lookupAsync(userName, caps.filterSupported() && !projectionRejected));
+    }
+
+    private CompletableFuture<Optional<String>> lookupAsync(String userName, boolean projected) {
+        String filter = String.format("userName eq \"%s\"", userName);
+        String query = "filter=" + urlEncode(filter) + (projected ? "&attributes=id&count=1" : "");
+        HttpRequest req = baseRequestBuilder("/Users?" + query).GET().build();
+
+        // Streamed: reading stops at the first resource's id, the rest of a large page is never downloaded.
+        return sendAsync(req, HttpResponse.BodyHandlers.ofInputStream()).handle((res, e) -> {
+            if (e != null) {
+                httpErr("findUserIdByUserName failed: %s", cause(e).getMessage());
+                throw new ScimException("GET /Users failed: " + cause(e).getMessage(), cause(e));
+            }
+            try (InputStream body = res.body()) {
+                if (projected && res.statusCode() == 400) {
+                    // Only the plain query succeeding shows it was the projection that was rejected,
+                    // not e.g. the userName: until then keep projecting.
+                    httpInfo("GET /Users?%s -> 400; retrying without attributes/count", query);
+                    return lookupAsync(userName, false).thenApply(id -> {
+                        if (!projectionRejected) httpInfo("Target rejects attributes/count, using plain lookups");
+                        projectionRejected = true;
+                        return id;
+                    });
+                }
+                if (!is2xx(res.statusCode())) {
+                    String excerpt = excerpt(body);
+                    httpErr("GET /Users?%s -> %d %s", query, res.statusCode(), excerpt);
+                    throw new ScimException("GET /Users -> " + res.statusCode(), res.statusCode(), excerpt);
+                }
+                ListHead head = JsonMini.listHead(body);
+                httpInfo("GET /Users?%s -> %d totalResults=%d", query, res.statusCode(), head.totalResults());
+                if (head.totalResults() > 0) {
+                    if (head.firstId() != null) {
+                        idCache.put(userName, head.firstId());
+                        return CompletableFuture.completedFuture(Optional.of(head.firstId()));
                     }
+                    httpErr("Could not extract user id from SCIM response (Resources present but no id found).");
                 }
-            } else {
-                httpErr("GET /Users?%s -> %d %s", query, res.statusCode(), safeBody(res));
+                return CompletableFuture.completedFuture(Optional.<String>empty());
+            } catch (IOException | IllegalArgumentException ex) {
+                httpErr("GET /Users?%s: unreadable response: %s", query, ex.getMessage());
+                throw new ScimException("GET /Users: unreadable response: " + ex.getMessage(), ex);
             }
-        } catch (Exception e) {
-            httpErr("findUserIdByUserName failed: %s", e.getMessage());
-        }
-        return Optional.empty();
+        }).thenCompose(f -> f);
     }
 
-    /** Create SCIM user; returns true on 201/200. */
-    public boolean createUser(String jsonPayload) {
-        try {
-            HttpRequest req = baseRequestBuilder("/Users")
-                    .header("Content-Type", "application/scim+json")
-                    .POST(HttpRequest.BodyPublishers.ofString(jsonPayload))
-                    .build();
+    public CompletableFuture<Optional<String>> createUserAsync(String userName, byte[] jsonPayload) {
+        HttpRequest req = baseRequestBuilder("/Users")
+                .header("Content-Type", "application/scim+json")
+                .POST(HttpRequest.BodyPublishers.ofByteArray(jsonPayload))
+                .build();
 
-            HttpResponse<String> res = sendWithRetries(req);
-            if (res.statusCode() == 201 || res.statusCode() == 200) return true;
+        return sendAsync(req).handle((res, e) -> {
+            if (e != null) {
+                httpErr("POST /Users failed: %s", cause(e).getMessage());
+                throw new ScimException("POST /Users failed: " + cause(e).getMessage(), cause(e));
+            }
+            if (res.statusCode() == 201 || res.statusCode() == 200) {
+                // Created either way; without an id in the response it is resolved by the next write, not now,
+                // so a failing lookup cannot turn a successful create into a failed job.
+                String id = JsonMini.createdId(res);
+                if (id == null) {
+                    httpInfo("POST /Users -> %d without id; resolving it on the next write", res.statusCode());
+                    return Optional.of("");
+                }
+                idCache.put(userName, id);
+                return Optional.of(id);
+            }
 
             if (res.statusCode() == 409) {
                 // Diagnóstico: intenta extraer un UUID real de los backticks
                 String existingId = JsonMini.extractUuidFromError(res.body());
                 httpInfo("POST /Users got 409; existingId=%s", existingId != null ? existingId : "(not parsed)");
-            } else {
-                httpErr("POST /Users -> %d %s", res.statusCode(), safeBody(res));
+                return Optional.<String>empty();
             }
-            return false;
-        } catch (Exception e) {
-            httpErr("POST /Users failed: %s", e.getMessage());
-            return false;
-        }
+            httpErr("POST /Users -> %d %s", res.statusCode(), safeBody(res));
+            throw new ScimException("POST /Users -> " + res.statusCode(), res.statusCode(), safeBody(res));
+        });
     }
 
-    /** Patch SCIM user by id (RFC 7644 PatchOp). */
-    public boolean patchUser(String id, String jsonPatch) {
-        return sendJson("PATCH", "/Users/" + id, jsonPatch, 200, 204);
+    public CompletableFuture<Boolean> patchUserAsync(String id, byte[] jsonPatch) {
+        return writeUser("PATCH", id, jsonPatch);
     }
 
-    public boolean deleteUser(String id) {
-        try {
-            HttpRequest req = baseRequestBuilder("/Users/" + id).DELETE().build();
-            HttpResponse<String> res = sendWithRetries(req);
+    public CompletableFuture<Boolean> replaceUserAsync(String id, byte[] jsonUser) {
+        return writeUser("PUT", id, jsonUser);
+    }
+
+    public CompletableFuture<Boolean> deleteUserAsync(String id) {
+        HttpRequest req = baseRequestBuilder("/Users/" + id).DELETE().build();
+        return sendAsync(req).handle((res, e) -> {
+            if (e != null) {
+                httpErr("DELETE /Users/%s failed: %s", id, cause(e).getMessage());
+                return false;
+            }
             boolean ok = res.statusCode() == 204 || res.statusCode() == 200 || res.statusCode() == 404;
+            if (ok) idCache.removeValue(id);
             if (!ok) httpErr("DELETE /Users/%s -> %d %s", id, res.statusCode(), safeBody(res));
             return ok;
-        } catch (Exception e) {
-            httpErr("DELETE /Users/%s failed: %s", id, e.getMessage());
-            return false;
+        });
+    }
+
+    /** One operation of a POST /Bulk request (RFC 7644 §3.7). {@code data} is encoded JSON, or null. */
+    public record BulkOperation(String bulkId, String method, String path, byte[] data) { }
+
+    /** Outcome of one bulk operation; {@code location} is set for created resources. */
+    public record BulkResult(String bulkId, int status, String location) {
+        public boolean ok() { return is2xx(status); }
+
+        /** SCIM id of the created / modified resource, from the last segment of {@code location}. */
+        public String id() {
+            if (location == null || location.isBlank()) return null;
+            String l = trimTrailingSlash(location.trim());
+            return l.substring(l.lastIndexOf('/') + 1);
         }
     }
 
+    /**
+     * Send operations through POST /Bulk, split into as many requests as the target's
+     * maxOperations / maxPayloadSize require (sent concurrently, within the in-flight limit).
+     * Results are keyed by bulkId; operations missing from the map (request failed, or the
+     * target did not report them) should be retried individually by the caller.
+     */
+    public CompletableFuture<Map<String, BulkResult>> bulkAsync(List<BulkOperation> ops) {
+        return capabilitiesAsync().thenCompose(caps -> {
+            if (!caps.canBulk() || ops.isEmpty()) return CompletableFuture.completedFuture(Map.<String, BulkResult>of());
+
+            List<CompletableFuture<Map<String, BulkResult>>> requests = new ArrayList<>();
+            for (List<byte[]> chunk : chunkBulk(ops, caps.bulkMaxOperations(), caps.bulkMaxPayloadSize())) {
+                requests.add(sendBulkChunk(chunk));
+            }
+            return CompletableFuture.allOf(requests.toArray(new CompletableFuture<?>[0])).thenApply(v -> {
+                Map<String, BulkResult> results = new HashMap<>();
+                requests.forEach(r -> results.putAll(r.join()));
+                return results;
+            });
+        });
+    }
+
+    private CompletableFuture<Map<String, BulkResult>> sendBulkChunk(List<byte[]> chunk) {
+        JsonWriter w = JsonWriter.pooled().beginObject();
+        w.name("schemas").beginArray().value("urn:ietf:params:scim:api:messages:2.0:BulkRequest").endArray();
+        w.name("Operations").beginArray();
+        for (byte[] op : chunk) w.rawValue(op);
+        byte[] body = w.endArray().endObject().toByteArray();
+        HttpRequest req = baseRequestBuilder("/Bulk")
+                .header("Content-Type", "application/scim+json")
+                .POST(HttpRequest.BodyPublishers.ofByteArray(body))
+                .build();
+
+        return sendAsync(req).handle((res, e) -> {
+            Map<String, BulkResult> results = new HashMap<>();
+            if (e != null) {
+                httpErr("POST /Bulk (%d ops) failed: %s", chunk.size(), cause(e).getMessage());
+                return results;
+            }
+            if (!is2xx(res.statusCode())) {
+                httpErr("POST /Bulk (%d ops) -> %d %s", chunk.size(), res.statusCode(), safeBody(res));
+                return results;
+            }
+            try {
+                int ok = 0;
+                for (Object op : Json.list(Json.get(Json.parse(res.body()), "Operations"))) {
+                    BulkResult r = new BulkResult(Json.str(Json.get(op, "bulkId")),
+                            bulkStatus(Json.get(op, "status")), Json.str(Json.get(op, "location")));
+                    if (r.bulkId() == null) continue;
+                    results.put(r.bulkId(), r);
+                    if (r.ok()) ok++;
+                }
+                httpInfo("POST /Bulk -> %d ops=%d ok=%d", res.statusCode(), chunk.size(), ok);
+            } catch (RuntimeException ex) {
+                httpErr("POST /Bulk (%d ops) unreadable response: %s", chunk.size(), ex.getMessage());
+            }
+            return results;
+        });
+    }
+
     /* ======================= internals ======================= */
 
-    private boolean sendJson(String method, String path, String json, int... okCodes) {
-        try {
-            HttpRequest.BodyPublisher body = HttpRequest.BodyPublishers.ofString(json);
-            HttpRequest.Builder b = baseRequestBuilder(path)
-                    .header("Content-Type", "application/scim+json")
-                    .method(method, body);
-
-            HttpResponse<String> res = sendWithRetries(b.build());
-            if (matches(res.statusCode(), okCodes)) return true;
-
-            httpErr("%s %s -> %d %s", method, path, res.statusCode(), safeBody(res));
-            return false;
-        } catch (Exception e) {
-            httpErr("%s %s failed: %s", method, path, e.getMessage());
-            return false;
+    /** Serialize operations and group them so no request exceeds the target limits. */
+    static List<List<byte[]>> chunkBulk(List<BulkOperation> ops, int maxOps, int maxPayload) {
+        final int envelope = 96; // schemas + brackets around the Operations array
+        List<List<byte[]>> chunks = new ArrayList<>();
+        List<byte[]> current = new ArrayList<>();
+        long size = envelope;
+        for (BulkOperation op : ops) {
+            JsonWriter w = JsonWriter.pooled().beginObject()
+                    .field("method", op.method())
+                    .field("bulkId", op.bulkId())
+                    .field("path", op.path());
+            if (op.data() != null) w.name("data").rawValue(op.data());
+            byte[] json = w.endObject().toByteArray();
+            int bytes = json.length + 1;
+
+            boolean full = current.size() >= maxOps || (maxPayload > 0 && size + bytes > maxPayload);
+            if (full && !current.isEmpty()) {
+                chunks.add(current);
+                current = new ArrayList<>();
+                size = envelope;
+            }
+            current.add(json);
+            size += bytes;
         }
+        if (!current.isEmpty()) chunks.add(current);
+        return chunks;
+    }
+
+    /** RFC 7644 uses a string ("201"); some servers send a number or {"code": 201}. */
+    private static int bulkStatus(Object status) {
+        Object code = (status instanceof Map) ? Json.get(status, "code") : status;
+        return (int) Json.num(code, -1);
+    }
+
+    /**
+     * PATCH or PUT /Users/{id}. Completes with true on 200/204 and false on 404 (the id is dropped
+     * from the cache, so the caller can look it up again); anything else fails with a {@link ScimException}.
+     */
+    private CompletableFuture<Boolean> writeUser(String method, String id, byte[] json) {
+        String path = "/Users/" + id;
+        HttpRequest req = baseRequestBuilder(path)
+                .header("Content-Type", "application/scim+json")
+                .method(method, HttpRequest.BodyPublishers.ofByteArray(json))
+                .build();
+
+        return sendAsync(req).handle((res, e) -> {
+            if (e != null) {
+                httpErr("%s %s failed: %s", method, path, cause(e).getMessage());
+                throw new ScimException(method + " " + path + " failed: " + cause(e).getMessage(), cause(e));
+            }
+            int sc = res.statusCode();
+            if (sc == 200 || sc == 204) return true;
+            if (sc == 404) {
+                idCache.removeValue(id);
+                return false;
+            }
+            httpErr("%s %s -> %d %s", method, path, sc, safeBody(res));
+            throw new ScimException(method + " " + path + " -> " + sc, sc, safeBody(res));
+        });
     }
 
     private HttpRequest.Builder baseRequestBuilder(String pathOrQuery) {
@@ -156,38 +504,112 @@ public class ScimClient {
                 .header("User-Agent", "keycloak-scim-outbound/1.0");
     }
 
-    private HttpResponse<String> sendWithRetries(HttpRequest req) throws Exception {
-        int attempt = 0;
-        long backoff = 250L;
-        while (true) {
-            attempt++;
-            HttpResponse<String> res;
+    /**
+     * Send with retries on I/O errors, 429 and 5xx. Completes with the last response
+     * (or exceptionally once retries are exhausted on I/O errors). Retries stop early when
+     * the retry budget is spent or the target asks to wait longer than we hold a request.
+     */
+    private CompletableFuture<HttpResponse<String>> sendAsync(HttpRequest req) {
+        return sendAsync(req, HttpResponse.BodyHandlers.ofString());
+    }
+
+    /** As {@link #sendAsync(HttpRequest)}, with the body read by {@code handler}. */
+    private <T> CompletableFuture<HttpResponse<T>> sendAsync(HttpRequest req, HttpResponse.BodyHandler<T> handler) {
+        if (!breaker.allowRequest()) return CompletableFuture.failedFuture(new CircuitOpenException(baseUrl));
+        retryBudget.requested();
+        return attempt(req, handler, 1, RETRY_BASE_MILLIS);
+    }
+
+    private <T> CompletableFuture<HttpResponse<T>> attempt(HttpRequest req, HttpResponse.BodyHandler<T> handler, int attempt, long previousDelay) {
+        return exchange(req, handler).handle((res, e) -> {
+            boolean unhealthy = (e != null) || (res.statusCode() >= 500 && res.statusCode() <= 599);
+            breaker.record(!unhealthy);
+            boolean retryable = unhealthy || res.statusCode() == 429;
+            if (retryable && attempt <= this.maxRetries && !breaker.allowRequest()) {
+                discard(res);
+                return CompletableFuture.<HttpResponse<T>>failedFuture(new CircuitOpenException(baseUrl));
+            }
+            long retryAfter = (res != null) ? retryAfterMillis(res) : 0;
+            if (!retryable || attempt > this.maxRetries || retryAfter > MAX_RETRY_AFTER_MILLIS || !retryBudget.tryRetry()) {
+                return (e != null) ? CompletableFuture.<HttpResponse<T>>failedFuture(cause(e)) : CompletableFuture.completedFuture(res);
+            }
+            discard(res);
+            // Decorrelated jitter: random in [base, 3 * previous], capped; so clients do not retry in lockstep.
+            long jitter = Math.min(RETRY_CAP_MILLIS, ThreadLocalRandom.current().nextLong(RETRY_BASE_MILLIS, previousDelay * 3 + 1));
+            long delay = Math.max(jitter, retryAfter);
+            // Wait on a timer, not on a thread; the in-flight slot is already released.
+            return CompletableFuture.supplyAsync(() -> null, CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS))
+                    .thenCompose(v -> attempt(req, handler, attempt + 1, jitter));
+        }).thenCompose(f -> f);
+    }
+
+    /** Delay asked for by a Retry-After header (seconds or HTTP-date), 0 if absent or unparsable. */
+    private static long retryAfterMillis(HttpResponse<?> res) {
+        Optional<String> header = res.headers().firstValue("Retry-After");
+        if (header.isEmpty()) return 0;
+        String v = header.get().trim();
+        try {
+            return Math.max(0, Long.parseLong(v) * 1000);
+        } catch (NumberFormatException notSeconds) {
             try {
-                res = http.send(req, HttpResponse.BodyHandlers.ofString());
-            } catch (Exception e) {
-                if (attempt > this.maxRetries) throw e;
-                sleep(backoff);
-                backoff = Math.min(backoff * 2, 2000L);
-                continue;
+                return Math.max(0, Duration.between(ZonedDateTime.now(), ZonedDateTime.parse(v, DateTimeFormatter.RFC_1123_DATE_TIME)).toMillis());
+            } catch (DateTimeParseException e) {
+                return 0;
             }
+        }
+    }
 
-            int sc = res.statusCode();
-            if (is2xx(sc)) return res;
+    /** Half-open probe: one GET /ServiceProviderConfig, no retries, past the breaker. */
+    private CompletableFuture<Boolean> healthCheck() {
+        return exchange(baseRequestBuilder("/ServiceProviderConfig").GET().build(), HttpResponse.BodyHandlers.discarding())
+                .handle((res, e) -> e == null && is2xx(res.statusCode()));
+    }
 
-            if ((sc == 429 || (sc >= 500 && sc <= 599)) && attempt <= this.maxRetries) {
-                sleep(backoff);
-                backoff = Math.min(backoff * 2, 2000L);
-                continue;
+    private void breakerChanged(CircuitBreaker.State state) {
+        switch (state) {
+            case OPEN -> httpErr("Circuit OPEN for %s: requests paused", baseUrl);
+            case HALF_OPEN -> httpInfo("Circuit HALF-OPEN for %s: probing", baseUrl);
+            case CLOSED -> {
+                httpInfo("Circuit CLOSED for %s: target healthy again", baseUrl);
+                capabilities = null; // whatever was probed while it was down is not trustworthy
             }
-            return res;
         }
     }
 
+    /** One HTTP exchange (after a rate-limit token), holding an in-flight slot only while the request is on the wire. */
+    private <T> CompletableFuture<HttpResponse<T>> exchange(HttpRequest req, HttpResponse.BodyHandler<T> handler) {
+        CompletableFuture<Void> admitted = (rate != null) ? rate.acquire() : CompletableFuture.completedFuture(null);
+        return admitted.thenCompose(t -> inFlight.acquire()).thenCompose(v -> {
+            long started = System.nanoTime();
+            CompletableFuture<HttpResponse<T>> f;
+            try {
+                f = http.sendAsync(req, handler);
+            } catch (RuntimeException e) {
+                f = CompletableFuture.failedFuture(e);
+            }
+            return f.whenComplete((res, e) -> inFlight.release(System.nanoTime() - started,
+                    e != null || res.statusCode() == 429 || res.statusCode() >= 500));
+        });
+    }
+
     private static boolean is2xx(int code) { return code >= 200 && code < 300; }
-    private static boolean matches(int code, int... okCodes) { for (int ok : okCodes) if (ok == code) return true; return false; }
     private static String trimTrailingSlash(String s) { if (s == null || s.isEmpty()) return s; return s.endsWith("/") ? s.substring(0, s.length() - 1) : s; }
     private static String urlEncode(String s) { return URLEncoder.encode(s, StandardCharsets.UTF_8); }
-    private static void sleep(long ms) { try { Thread.sleep(ms); } catch (InterruptedException ignored) { Thread.currentThread().interrupt(); } }
+    private static Throwable cause(Throwable e) { return (e instanceof CompletionException && e.getCause() != null) ? e.getCause() : e; }
+    /** Closes a streamed body that will not be read, so its connection can be reused. */
+    private static void discard(HttpResponse<?> res) {
+        if (res != null && res.body() instanceof InputStream in) {
+            try { in.close(); } catch (IOException ignored) { }
+        }
+    }
+
+    /** First 400 chars of a streamed body, for error messages. */
+    private static String excerpt(InputStream body) throws IOException {
+        byte[] head = body.readNBytes(400);
+        String s = new String(head, StandardCharsets.UTF_8);
+        return head.length == 400 ? s + " …" : s;
+    }
+
     private static String safeBody(HttpResponse<String> res) { String b = res.body(); return b == null ? "" : (b.length() > 400 ? b.substring(0, 400) + " …" : b); }
 
     /* ===== timestamped logging (stdout/stderr) ===== */
@@ -195,22 +617,65 @@ public class ScimClient {
     private static void httpInfo(String fmt, Object... args) { System.out.printf("%s [keycloak-scim-outbound/HTTP] %s%n", now(), String.format(fmt, args)); }
     private static void httpErr(String fmt, Object... args)  { System.err.printf("%s [keycloak-scim-outbound/HTTP] %s%n", now(), String.format(fmt, args)); }
 
+    /** totalResults of a ListResponse and the id of its first resource (null if none). */
+    record ListHead(long totalResults, String firstId) { }
+
     /** Tiny helpers */
     static class JsonMini {
-        static int totalResults(String body) {
-            if (body == null) return 0;
-            int t = body.indexOf("\"totalResults\"");
-            if (t < 0) return 0;
-            int colon = body.indexOf(':', t);
-            if (colon < 0) return 0;
-            int end = colon + 1;
-            StringBuilder sb = new StringBuilder();
-            while (end < body.length()) {
-                char c = body.charAt(end++);
-                if (Character.isDigit(c)) sb.append(c);
-                else if (sb.length() > 0) break;
-            }
-            try { return Integer.parseInt(sb.toString()); } catch (Exception ignored) { return 0; }
+        /**
+         * Reads a ListResponse only as far as needed: returns as soon as both totalResults and
+         * the first resource's top-level "id" are known, skipping everything else unparsed.
+         */
+        static ListHead listHead(InputStream body) throws IOException {
+            JsonReader r = JsonReader.of(body);
+            long total = -1;
+            String id = null;
+            boolean resourcesSeen = false;
+            r.beginObject();
+            while (r.hasNext() && (total < 0 || (id == null && !resourcesSeen))) {
+                String name = r.nextName();
+                if ("totalResults".equals(name) && r.peek() == JsonReader.Token.NUMBER) {
+                    total = r.nextNumber().longValue();
+                } else if ("Resources".equals(name) && r.peek() == JsonReader.Token.BEGIN_ARRAY) {
+                    resourcesSeen = true;
+                    r.beginArray();
+                    if (r.hasNext() && r.peek() == JsonReader.Token.BEGIN_OBJECT) id = firstId(r);
+                    if (total >= 0) break; // the rest of the page is of no use
+                    while (r.hasNext()) r.skipValue();
+                    r.endArray();
+                } else {
+                    r.skipValue();
+                }
+            }
+            return new ListHead(Math.max(0, total), id);
+        }
+
+        /** Top-level "id" of the resource object at the reader, consuming the object. */
+        private static String firstId(JsonReader r) throws IOException {
+            String id = null;
+            r.beginObject();
+            while (r.hasNext()) {
+                if (id == null && "id".equals(r.nextName()) && r.peek() == JsonReader.Token.STRING) id = r.nextString();
+                else r.skipValue();
+            }
+            r.endObject();
+            return id;
+        }
+
+        /** SCIM id of a freshly created resource: last segment of Location, else the body's "id". */
+        static String createdId(HttpResponse<String> res) {
+            String location = res.headers().firstValue("Location").orElse(null);
+            if (location != null && !location.isBlank()) {
+                String l = trimTrailingSlash(location.trim());
+                String id = l.substring(l.lastIndexOf('/') + 1);
+                if (!id.isEmpty()) return id;
+            }
+            if (res.body() == null || res.body().isBlank()) return null;
+            try {
+                return firstId(JsonReader.of(res.body()));
+            } catch (IOException | IllegalArgumentException e) {
+                return null;
+            }
         }
 
         static String extractUuidFromError(String body) {
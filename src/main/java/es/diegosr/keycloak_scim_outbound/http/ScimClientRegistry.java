@@ -0,0 +1,49 @@
+package es.diegosr.keycloak_scim_outbound.http;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * One shared {@link ScimClient} per SCIM target component.
+ * A client is reused while the component keeps the same {@link ScimEndpoint} settings, and
+ * replaced (the old one shut down, without waiting for its requests) as soon as newer settings
+ * show up or the component is removed.
+ *
+ * Jobs queued before a configuration change still carry the settings they were created with;
+ * an endpoint older than the current client's ({@link ScimEndpoint#version()}) never replaces
+ * it, such jobs simply run with the current settings. So old and new jobs never take turns
+ * rebuilding the client (and losing its caches, breaker and limiters).
+ */
+public class ScimClientRegistry implements AutoCloseable {
+    private final ConcurrentHashMap<String, ScimClient> clients = new ConcurrentHashMap<>();
+
+    /** Client for component {@code targetId}, (re)built if {@code endpoint} holds newer settings. */
+    public ScimClient get(String targetId, ScimEndpoint endpoint) {
+        ScimClient[] replaced = new ScimClient[1];
+        ScimClient client = clients.compute(targetId, (id, current) -> {
+            if (current != null && (current.sameConfig(endpoint) || endpoint.version() < current.endpoint().version())) {
+                return current;
+            }
+            replaced[0] = current;
+            return new ScimClient(endpoint);
+        });
+        if (replaced[0] != null) replaced[0].close();
+        return client;
+    }
+
+    /** A component was updated: switch to its new settings now, so queued jobs stop using the old ones. */
+    public void update(String targetId, ScimEndpoint endpoint) {
+        get(targetId, endpoint);
+    }
+
+    /** Drop the client of a component that was removed. */
+    public void evict(String targetId) {
+        ScimClient old = clients.remove(targetId);
+        if (old != null) old.close();
+    }
+
+    @Override
+    public void close() {
+        clients.values().forEach(ScimClient::close);
+        clients.clear();
+    }
+}
@@ -0,0 +1,45 @@
+package es.diegosr.keycloak_scim_outbound.http;
+
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Connection settings of one SCIM target, as configured on its component.
+ * A {@link ScimClient} is built for exactly one endpoint; any change means a new client.
+ *
+ * @param maxInFlight       max concurrent HTTP requests to this target
+ * @param requestsPerSecond average HTTP requests per second to this target, 0 for no limit
+ * @param burst             requests that may go out at once before the rate applies
+ * @param version           when these settings were read, in node-local order: of two endpoints
+ *                          of the same target with different settings, the higher version is the newer
+ */
+public record ScimEndpoint(String baseUrl, String token, int maxInFlight, int requestsPerSecond, int burst, long version) {
+
+    public static final int DEFAULT_MAX_IN_FLIGHT = 16;
+    private static final AtomicLong VERSIONS = new AtomicLong();
+
+    public ScimEndpoint {
+        maxInFlight = (maxInFlight > 0) ? maxInFlight : DEFAULT_MAX_IN_FLIGHT;
+        requestsPerSecond = Math.max(0, requestsPerSecond);
+        burst = (burst > 0) ? burst : Math.max(1, requestsPerSecond);
+    }
+
+    /** Settings read just now: stamped with a version higher than any before. */
+    public ScimEndpoint(String baseUrl, String token, int maxInFlight, int requestsPerSecond, int burst) {
+        this(baseUrl, token, maxInFlight, requestsPerSecond, burst, VERSIONS.incrementAndGet());
+    }
+
+    public ScimEndpoint(String baseUrl, String token, int maxInFlight) {
+        this(baseUrl, token, maxInFlight, 0, 0);
+    }
+
+    /** True if both carry the same settings, whatever their versions. */
+    public boolean sameSettings(ScimEndpoint other) {
+        return Objects.equals(baseUrl, other.baseUrl) && Objects.equals(token, other.token)
+                && maxInFlight == other.maxInFlight && requestsPerSecond == other.requestsPerSecond && burst == other.burst;
+    }
+
+    public boolean rateLimited() {
+        return requestsPerSecond > 0;
+    }
+}
@@ -0,0 +1,34 @@
+package es.diegosr.keycloak_scim_outbound.http;
+
+/**
+ * A SCIM call that failed for good: retries exhausted, or a response the caller cannot
+ * recover from (any 4xx other than the 404 / 409 the provisioning flow handles itself).
+ *
+ * @see ScimClient
+ */
+public class ScimException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    private final int status;
+    private final String excerpt;
+
+    /**
+     * @param status  HTTP status of the last response, or -1 if none was received
+     * @param excerpt start of the response body (may be empty)
+     */
+    public ScimException(String message, int status, String excerpt) {
+        super(message);
+        this.status = status;
+        this.excerpt = excerpt;
+    }
+
+    public ScimException(String message, Throwable cause) {
+        super(message, cause);
+        this.status = -1;
+        this.excerpt = "";
+    }
+
+    public int status() { return status; }
+
+    public String excerpt() { return excerpt; }
+}
@@ -0,0 +1,277 @@
+package es.diegosr.keycloak_scim_outbound.outbox;
+
+import es.diegosr.keycloak_scim_outbound.dispatch.ScimDispatcher;
+import es.diegosr.keycloak_scim_outbound.dispatch.ScimJob;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.LockModeType;
+
+import org.hibernate.LockMode;
+import org.hibernate.Session;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.UnaryOperator;
+
+/**
+ * Outbox kept in the Keycloak database ({@link ScimOutboxEntity}), for clusters whose local
+ * disk does not survive a restart.
+ *
+ * Jobs are inserted by {@link #enqueue} in the same transaction as the user change. Every node
+ * polls the table and claims rows with {@code SELECT ... FOR UPDATE SKIP LOCKED}, taking a lease
+ * on them, so nodes share the backlog without pushing the same job twice. (H2 has no SKIP LOCKED:
+ * there a claim waits for the rows another one is taking, then finds them leased.) Only the oldest row of
+ * a user is claimable, and only while no other row of that user is leased: a user's jobs are run
+ * in order by one node at a time. Rows are deleted in batches once the dispatcher has run them;
+ * rows of a node that died are claimed again by another one when their lease expires.
+ *
+ * The poller renews the lease of every row this node still holds (queued, parked behind an open
+ * circuit breaker or in flight) well before it expires, so a job that waits longer than
+ * {@code leaseMillis} is not claimed, and pushed, a second time by another node. Only a node that
+ * stops polling (it died, or its database connection did) loses its rows; renewals and deletes that
+ * find a row leased by another node report it, since that job may then be pushed twice.
+ */
+public class DbOutbox implements JobJournal {
+    private static final long POLL_MILLIS = 500;
+    private static final int CLAIM_BATCH = 200;
+    private static final int ID_BATCH = 500;
+
+    private final KeycloakSessionFactory sessionFactory;
+    private final long leaseMillis;
+    private final String nodeId = UUID.randomUUID().toString();
+    private final ScheduledExecutorService poller = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "scim-outbound-outbox-poller");
+        t.setDaemon(true);
+        return t;
+    });
+    private volatile ScimDispatcher dispatcher;
+
+    private final AtomicLong seqs = new AtomicLong();
+    /** Rows handed to the dispatcher and not run yet: coalescing key -> (sequence -> row id). */
+    private final Map<String, TreeMap<Long, String>> handed = new HashMap<>();
+    /** Ids of rows whose job has run, deleted on the next poll. */
+    private final ConcurrentLinkedQueue<String> finished = new ConcurrentLinkedQueue<>();
+    /** When the poller last renewed the leases of the rows in {@link #handed} (poller thread only). */
+    private long renewedAt;
+
+    public DbOutbox(KeycloakSessionFactory sessionFactory, long leaseMillis) {
+        this.sessionFactory = sessionFactory;
+        this.leaseMillis = leaseMillis;
+    }
+
+    /** Start claiming rows for {@code dispatcher}; call once the database is ready. */
+    public void start(ScimDispatcher dispatcher) {
+        this.dispatcher = dispatcher;
+        poller.scheduleWithFixedDelay(this::poll, 0, POLL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public boolean enqueue(KeycloakSession session, String key, ScimJob job) {
+        ScimOutboxEntity row = new ScimOutboxEntity();
+        row.setId(KeycloakModelUtils.generateId());
+        row.setCreatedAt(System.currentTimeMillis());
+        row.setCoalescingKey(key);
+        row.setPayload(Base64.getEncoder().encodeToString(JobCodec.toBytes(job)));
+        em(session).persist(row);
+        return true;
+    }
+
+    @Override
+    public long append(String key, ScimJob job) {
+        return append(key, job, null);
+    }
+
+    /** {@code rowId} is the row the poller claimed for {@code job}; null for jobs that never had one. */
+    @Override
+    public long append(String key, ScimJob job, String rowId) {
+        long seq = seqs.incrementAndGet();
+        if (rowId != null) {
+            synchronized (handed) {
+                handed.computeIfAbsent(key, k -> new TreeMap<>()).put(seq, rowId);
+            }
+        }
+        return seq;
+    }
+
+    /** Any node may claim a user's next row. */
+    @Override
+    public boolean shared() {
+        return true;
+    }
+
+    /** Rows are committed with the user change, before the job ever reaches the dispatcher. */
+    @Override
+    public CompletableFuture<Void> flushed() {
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public void ack(String key, long seq) {
+        synchronized (handed) {
+            TreeMap<Long, String> rows = handed.get(key);
+            if (rows == null) return;
+            Map<Long, String> done = rows.headMap(seq, true);
+            finished.addAll(done.values());
+            done.clear();
+            if (rows.isEmpty()) handed.remove(key);
+        }
+    }
+
+    /** Nothing to replay locally: unfinished rows are simply claimed again once their lease expires. */
+    @Override
+    public List<ScimJob> recovered() {
+        return List.of();
+    }
+
+    @Override
+    public void compact() { }
+
+    @Override
+    public void close() {
+        poller.shutdown();
+        try {
+            poller.awaitTermination(5, TimeUnit.SECONDS);
+            deleteFinished();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            logErr("Could not delete finished rows on shutdown: %s", e.getMessage());
+        }
+    }
+
+    /* ===== poller ===== */
+
+    record Claimed(String rowId, ScimJob job) { }
+
+    private void poll() {
+        try {
+            deleteFinished();
+            renewLeases();
+            // Claim only while the dispatcher has little waiting: unclaimed rows stay available to other nodes.
+            while (dispatcher.queued() < CLAIM_BATCH) {
+                List<Claimed> claimed = new ArrayList<>();
+                KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> claim(session, claimed));
+                for (Claimed c : claimed) dispatcher.submit(c.job(), c.rowId());
+                if (claimed.size() < CLAIM_BATCH) break;
+            }
+        } catch (RuntimeException e) {
+            logErr("Poll failed: %s", e.getMessage());
+        }
+    }
+
+    private void claim(KeycloakSession session, List<Claimed> claimed) {
+        claim(em(session), job -> ScimDispatcher.withCurrentTarget(session, job), System.currentTimeMillis(), claimed);
+    }
+
+    /**
+     * Lease the claimable rows (at most {@link #CLAIM_BATCH} users) to this node. {@code current}
+     * gives a decoded job its target's current settings, or null if the target is gone.
+     */
+    void claim(EntityManager em, UnaryOperator<ScimJob> current, long now, List<Claimed> claimed) {
+        List<ScimOutboxEntity> heads = em.unwrap(Session.class)
+                .createNamedQuery("ScimOutbox.claimable", ScimOutboxEntity.class)
+                .setParameter("now", now)
+                .setMaxResults(CLAIM_BATCH)
+                .setHibernateLockMode(LockMode.UPGRADE_SKIPLOCKED)
+                .getResultList();
+
+        Set<String> keys = new HashSet<>();
+        for (ScimOutboxEntity head : heads) {
+            if (!keys.add(head.getCoalescingKey())) continue;
+            // Lock the whole key: this node now owns every job of the user until it is done.
+            List<ScimOutboxEntity> rows = em.createNamedQuery("ScimOutbox.byKey", ScimOutboxEntity.class)
+                    .setParameter("key", head.getCoalescingKey())
+                    .setLockMode(LockModeType.PESSIMISTIC_WRITE)
+                    .getResultList();
+            for (ScimOutboxEntity row : rows) {
+                if (row.getClaimedUntil() >= now) continue; // leased meanwhile by another node
+                ScimJob job = current.apply(JobCodec.fromBytes(Base64.getDecoder().decode(row.getPayload())));
+                if (job == null) { em.remove(row); continue; } // target removed
+                row.setClaimedBy(nodeId);
+                row.setClaimedUntil(now + leaseMillis);
+                claimed.add(new Claimed(row.getId(), job));
+            }
+        }
+    }
+
+    private void deleteFinished() {
+        while (!finished.isEmpty()) {
+            List<String> ids = new ArrayList<>(ID_BATCH);
+            String id;
+            while (ids.size() < ID_BATCH && (id = finished.poll()) != null) ids.add(id);
+            int deleted;
+            try {
+                deleted = KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, session -> delete(em(session), ids));
+            } catch (RuntimeException e) {
+                finished.addAll(ids); // still leased to this node: try again on the next poll
+                throw e;
+            }
+            if (deleted < ids.size()) {
+                logErr("%d finished row(s) had been claimed by another node meanwhile; their job may be pushed twice", ids.size() - deleted);
+            }
+        }
+    }
+
+    /** Extend the lease of every row handed to the dispatcher and not finished yet, a third of the lease before it runs out. */
+    private void renewLeases() {
+        long now = System.currentTimeMillis();
+        if (now - renewedAt < leaseMillis / 3) return;
+        renewedAt = now;
+
+        List<String> held = new ArrayList<>();
+        synchronized (handed) {
+            handed.values().forEach(rows -> held.addAll(rows.values()));
+        }
+        for (int from = 0; from < held.size(); from += ID_BATCH) {
+            List<String> ids = held.subList(from, Math.min(held.size(), from + ID_BATCH));
+            int renewed = KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, session -> renew(em(session), ids, now));
+            if (renewed < ids.size()) {
+                logErr("%d row(s) lost their lease to another node; their job may be pushed twice", ids.size() - renewed);
+            }
+        }
+    }
+
+    /** Lease {@code ids} for another {@code leaseMillis} from {@code now}; returns how many rows this node still held. */
+    int renew(EntityManager em, List<String> ids, long now) {
+        return em.createNamedQuery("ScimOutbox.renew")
+                .setParameter("until", now + leaseMillis)
+                .setParameter("node", nodeId)
+                .setParameter("ids", ids)
+                .executeUpdate();
+    }
+
+    /** Delete the finished rows {@code ids} that are still leased to this node; returns how many were. */
+    int delete(EntityManager em, List<String> ids) {
+        return em.createNamedQuery("ScimOutbox.deleteIds")
+                .setParameter("node", nodeId)
+                .setParameter("ids", ids)
+                .executeUpdate();
+    }
+
+    private static EntityManager em(KeycloakSession session) {
+        return session.getProvider(JpaConnectionProvider.class).getEntityManager();
+    }
+
+    /* ===== timestamped logging helpers ===== */
+    private static String now() { return java.time.OffsetDateTime.now().toString(); }
+    private static void logErr(String fmt, Object... args) {
+        System.err.printf("%s [keycloak-scim-outbound][OUTBOX] %s%n", now(), String.format(fmt, args));
+    }
+}
@@ -0,0 +1,239 @@
+package es.diegosr.keycloak_scim_outbound.outbox;
+
+import es.diegosr.keycloak_scim_outbound.dispatch.ScimDispatcher;
+import es.diegosr.keycloak_scim_outbound.dispatch.ScimJob;
+import es.diegosr.keycloak_scim_outbound.http.ScimException;
+
+import jakarta.persistence.EntityManager;
+
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+
+/**
+ * Jobs that failed for good, kept in {@link ScimDeadLetterEntity} so a target that was down or
+ * rejecting requests can be brought back in sync once it recovers.
+ *
+ * A replay takes the dead letters of one target in pages of {@code perSecond} jobs and hands them
+ * to the dispatcher, at most one page per second. The dispatcher runs each page in parallel
+ * (within the target's in-flight limit); jobs that fail again become new dead letters.
+ *
+ * A dead letter is never removed before its job is safe elsewhere: with the database outbox it is
+ * moved into the outbox table in the same transaction. Otherwise it is only marked as replayed,
+ * and deleted once its job has run. Rows are claimed with a conditional update, so of two replays
+ * (on any node) reading the same row only one takes it; and a marked row is left alone by later
+ * replays for {@link #REPLAY_LEASE_MILLIS}, while its job may still be queued. Rows a crash or
+ * restart left marked are taken again once that time has passed.
+ */
+public class DeadLetters implements AutoCloseable {
+    private static final int MAX_REASON = 255;
+    private static final int MAX_EXCERPT = 1000;
+    private static final int DELETE_BATCH = 500;
+    /** How long a replayed row stays out of later replays while its job has not run yet. */
+    static final long REPLAY_LEASE_MILLIS = 15 * 60_000L;
+
+    private final KeycloakSessionFactory sessionFactory;
+    /** One replay at a time per node. */
+    private final ExecutorService replayer = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "scim-outbound-replay");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /** Rows whose replayed job has run, deleted by the replayer. */
+    private final ConcurrentLinkedQueue<String> replayed = new ConcurrentLinkedQueue<>();
+
+    public DeadLetters(KeycloakSessionFactory sessionFactory) {
+        this.sessionFactory = sessionFactory;
+    }
+
+    /** A dead letter as listed to administrators. */
+    public record DeadLetter(String id, String action, String userId, String scimUserName,
+                             long failedAt, int status, String reason, String responseExcerpt) { }
+
+    /** Store a failed job in its own transaction (blocking). */
+    public void store(ScimJob job, Throwable failure) {
+        ScimDeadLetterEntity d = entity(job, failure);
+        KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> em(session).persist(d));
+    }
+
+    static ScimDeadLetterEntity entity(ScimJob job, Throwable failure) {
+        ScimDeadLetterEntity d = new ScimDeadLetterEntity();
+        d.setId(KeycloakModelUtils.generateId());
+        d.setRealmId(job.realmId());
+        d.setTargetId(job.targetId());
+        d.setUserId(job.userId());
+        d.setScimUserName(job.scimUserName());
+        d.setFailedAt(System.currentTimeMillis());
+        d.setStatus(failure instanceof ScimException se ? se.status() : -1);
+        d.setReason(truncate(String.valueOf(failure.getMessage()), MAX_REASON));
+        d.setResponseExcerpt(failure instanceof ScimException se ? truncate(se.excerpt(), MAX_EXCERPT) : null);
+        d.setPayload(Base64.getEncoder().encodeToString(JobCodec.toBytes(job)));
+        return d;
+    }
+
+    public List<DeadLetter> list(KeycloakSession session, String realmId, String targetId, int first, int max) {
+        List<DeadLetter> out = new ArrayList<>();
+        for (ScimDeadLetterEntity d : em(session).createNamedQuery("ScimDeadLetter.byTarget", ScimDeadLetterEntity.class)
+                .setParameter("realmId", realmId)
+                .setParameter("targetId", targetId)
+                .setFirstResult(first)
+                .setMaxResults(max)
+                .getResultList()) {
+            ScimJob job = JobCodec.fromBytes(Base64.getDecoder().decode(d.getPayload()));
+            out.add(new DeadLetter(d.getId(), job.action().name(), d.getUserId(), d.getScimUserName(),
+                    d.getFailedAt(), d.getStatus(), d.getReason(), d.getResponseExcerpt()));
+        }
+        return out;
+    }
+
+    public long count(KeycloakSession session, String realmId, String targetId) {
+        return em(session).createNamedQuery("ScimDeadLetter.countByTarget", Long.class)
+                .setParameter("realmId", realmId)
+                .setParameter("targetId", targetId)
+                .getSingleResult();
+    }
+
+    /**
+     * Start re-driving the dead letters of a target that exist now (not the ones its replay may
+     * add) through {@code dispatcher}, {@code perSecond} jobs per second. Returns immediately.
+     */
+    public void replay(String realmId, String targetId, int perSecond, ScimDispatcher dispatcher) {
+        final long before = System.currentTimeMillis();
+        replayer.execute(() -> {
+            int total = 0;
+            try {
+                while (true) {
+                    long started = System.nanoTime();
+                    deleteReplayed();
+                    List<Taken> tracked = new ArrayList<>();
+                    int taken = KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, session ->
+                            takePage(em(session), job -> ScimDispatcher.withCurrentTarget(session, job),
+                                    job -> dispatcher.enqueueInTransaction(session, job),
+                                    realmId, targetId, before, System.currentTimeMillis(), perSecond, tracked));
+                    if (taken == 0) break;
+                    for (Taken t : tracked) dispatcher.submitTracked(t.job()).thenRun(() -> replayed(t.rowId()));
+                    total += taken;
+
+                    long waitMs = 1000 - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+                    if (waitMs > 0) Thread.sleep(waitMs);
+                    // Let the previous page drain before taking the next one.
+                    while (dispatcher.queued() > perSecond) Thread.sleep(100);
+                }
+                deleteReplayed();
+                logInfo("Replayed %d dead letter(s) of target %s", total, targetId);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (RuntimeException e) {
+                logErr("Replay of target %s stopped after %d job(s): %s", targetId, total, e.getMessage());
+            }
+        });
+    }
+
+    /** A dead letter re-submitted by a replay, and its job. */
+    record Taken(String rowId, ScimJob job) { }
+
+    /**
+     * Take the next page of {@code max} dead letters of a target that failed before {@code before}
+     * and that no replay has taken since then, nor within {@link #REPLAY_LEASE_MILLIS}. Each row is
+     * claimed (marked as replayed at {@code now}) by a conditional update, and skipped if another
+     * replay got to it first. Jobs {@code moveToOutbox} accepts (in this transaction) have their row
+     * removed; the others are added to {@code tracked}, their rows to be deleted once the jobs have
+     * run. {@code current} gives a job its target's current settings, or null if the target is gone.
+     * Returns how many were taken.
+     */
+    static int takePage(EntityManager em, UnaryOperator<ScimJob> current, Predicate<ScimJob> moveToOutbox,
+                        String realmId, String targetId, long before, long now, int max, List<Taken> tracked) {
+        final long mark = Math.max(now, before);
+        int taken = 0;
+        for (ScimDeadLetterEntity d : em.createNamedQuery("ScimDeadLetter.replayable", ScimDeadLetterEntity.class)
+                .setParameter("realmId", realmId)
+                .setParameter("targetId", targetId)
+                .setParameter("before", before)
+                .setParameter("markedBefore", Math.min(before, now - REPLAY_LEASE_MILLIS))
+                .setMaxResults(max)
+                .getResultList()) {
+            ScimJob job = current.apply(JobCodec.fromBytes(Base64.getDecoder().decode(d.getPayload())));
+            if (job == null) break; // target removed: keep the rows for inspection
+            if (claim(em, d.getId(), d.getReplayedAt(), mark) == 0) continue; // another replay took it meanwhile
+            taken++;
+            if (moveToOutbox.test(job)) {
+                deleteIds(em, List.of(d.getId()));
+            } else {
+                tracked.add(new Taken(d.getId(), job));
+            }
+        }
+        return taken;
+    }
+
+    /** Mark row {@code id} as replayed at {@code now} if it still is marked {@code seen}; 1 if this call claimed it. */
+    static int claim(EntityManager em, String id, long seen, long now) {
+        return em.createNamedQuery("ScimDeadLetter.claim")
+                .setParameter("id", id)
+                .setParameter("seen", seen)
+                .setParameter("now", now)
+                .executeUpdate();
+    }
+
+    /** The replayed job of row {@code rowId} has run: delete the row (on the replayer, in a batch). */
+    private void replayed(String rowId) {
+        replayed.add(rowId);
+        try {
+            replayer.execute(this::deleteReplayed);
+        } catch (RejectedExecutionException e) {
+            // shutting down: the row stays marked and the next replay takes it again
+        }
+    }
+
+    private void deleteReplayed() {
+        while (!replayed.isEmpty()) {
+            List<String> ids = new ArrayList<>(DELETE_BATCH);
+            String id;
+            while (ids.size() < DELETE_BATCH && (id = replayed.poll()) != null) ids.add(id);
+            try {
+                KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> deleteIds(em(session), ids));
+            } catch (RuntimeException e) {
+                logErr("Could not delete %d replayed dead letter(s); a later replay re-sends them: %s", ids.size(), e.getMessage());
+            }
+        }
+    }
+
+    static int deleteIds(EntityManager em, List<String> ids) {
+        return em.createNamedQuery("ScimDeadLetter.deleteIds").setParameter("ids", ids).executeUpdate();
+    }
+
+    @Override
+    public void close() {
+        replayer.shutdownNow();
+    }
+
+    private static EntityManager em(KeycloakSession session) {
+        return session.getProvider(JpaConnectionProvider.class).getEntityManager();
+    }
+
+    private static String truncate(String s, int max) {
+        if (s == null) return null;
+        return s.length() <= max ? s : s.substring(0, max);
+    }
+
+    /* ===== timestamped logging helpers ===== */
+    private static String now() { return java.time.OffsetDateTime.now().toString(); }
+    private static void logInfo(String fmt, Object... args) {
+        System.out.printf("%s [keycloak-scim-outbound][DLQ] %s%n", now(), String.format(fmt, args));
+    }
+    private static void logErr(String fmt, Object... args) {
+        System.err.printf("%s [keycloak-scim-outbound][DLQ] %s%n", now(), String.format(fmt, args));
+    }
+}
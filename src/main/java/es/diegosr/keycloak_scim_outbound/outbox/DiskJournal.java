@@ -0,0 +1,355 @@
+package es.diegosr.keycloak_scim_outbound.outbox;
+
+import es.diegosr.keycloak_scim_outbound.dispatch.ScimJob;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only, segmented write-ahead log of dispatcher jobs.
+ *
+ * Records are framed as {@code [length][crc32][payload]} and written to
+ * {@code segment-<firstSeq>.wal} files of about {@value #SEGMENT_BYTES} bytes. A single writer
+ * thread drains everything appended since its last pass, writes it with one channel write per
+ * segment and one {@code force()} (group commit), so many events share each fsync.
+ *
+ * A segment is deleted once it is no longer the active one and every job in it, and in every
+ * older segment, has been acknowledged. On startup all segments are read back (stopping at the
+ * first torn or corrupt record) and unacknowledged jobs are offered through {@link #recovered()}.
+ */
+public class DiskJournal implements JobJournal {
+    static final int SEGMENT_BYTES = 16 * 1024 * 1024;
+    private static final byte JOB = 'J';
+    private static final byte ACK = 'A';
+
+    private final Path dir;
+    private final Thread writer;
+
+    /* ===== state guarded by "this" ===== */
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    /** Unacknowledged sequence numbers per coalescing key, ascending. */
+    private final Map<String, ArrayDeque<Long>> unacked = new HashMap<>();
+    private List<Pending> buffer = new ArrayList<>();
+    private CompletableFuture<Void> nextFlush = new CompletableFuture<>();
+    /** Flush of the batch the writer is working on, or null when idle. */
+    private CompletableFuture<Void> writing;
+    private Segment current;
+    private long nextSeq;
+    private boolean closed;
+
+    /** Segments and jobs left by the previous run. */
+    private List<Path> oldSegments;
+    private List<ScimJob> recovered;
+
+    public DiskJournal(Path dir) throws IOException {
+        this.dir = dir;
+        Files.createDirectories(dir);
+        this.nextSeq = recover() + 1;
+        this.current = new Segment(segmentPath(nextSeq));
+        segments.put(nextSeq, current);
+        this.writer = new Thread(this::writeLoop, "scim-outbound-outbox");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    @Override
+    public long append(String key, ScimJob job) {
+        synchronized (this) {
+            if (closed) return 0;
+            long seq = nextSeq++;
+            byte[] record = frame(encodeJob(seq, key, job));
+            if (current.bytes > 0 && current.bytes + record.length > SEGMENT_BYTES) {
+                current = new Segment(segmentPath(seq));
+                segments.put(seq, current);
+            }
+            current.bytes += record.length;
+            current.live++;
+            unacked.computeIfAbsent(key, k -> new ArrayDeque<>()).add(seq);
+            buffer.add(new Pending(current, record));
+            notifyAll();
+            return seq;
+        }
+    }
+
+    @Override
+    public synchronized CompletableFuture<Void> flushed() {
+        if (!buffer.isEmpty()) return nextFlush;
+        return (writing != null) ? writing : CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public synchronized void ack(String key, long seq) {
+        if (closed || seq <= 0) return;
+        ArrayDeque<Long> seqs = unacked.get(key);
+        if (seqs == null) return;
+        while (!seqs.isEmpty() && seqs.peekFirst() <= seq) {
+            Segment s = segments.floorEntry(seqs.pollFirst()).getValue();
+            s.live--;
+        }
+        if (seqs.isEmpty()) unacked.remove(key);
+
+        byte[] record = frame(encodeAck(key, seq));
+        current.bytes += record.length;
+        buffer.add(new Pending(current, record));
+        notifyAll();
+    }
+
+    @Override
+    public synchronized List<ScimJob> recovered() {
+        return recovered;
+    }
+
+    @Override
+    public void compact() {
+        List<Path> old;
+        synchronized (this) {
+            old = oldSegments;
+            oldSegments = List.of();
+            recovered = List.of();
+        }
+        for (Path p : old) {
+            try { Files.deleteIfExists(p); } catch (IOException e) { logErr("Could not delete %s: %s", p, e.getMessage()); }
+        }
+    }
+
+    /** Writes what is still buffered and stops the writer; unacknowledged jobs stay on disk. */
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            writer.join(10_000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /* ===== writer ===== */
+
+    private void writeLoop() {
+        FileChannel channel = null;
+        Segment open = null;
+        while (true) {
+            List<Pending> batch;
+            CompletableFuture<Void> flush;
+            boolean last;
+            synchronized (this) {
+                while (buffer.isEmpty() && !closed) {
+                    try { wait(); } catch (InterruptedException e) { closed = true; }
+                }
+                batch = buffer;
+                flush = nextFlush;
+                last = closed;
+                buffer = new ArrayList<>();
+                nextFlush = new CompletableFuture<>();
+                writing = flush;
+            }
+
+            try {
+                int i = 0;
+                while (i < batch.size()) {
+                    Segment seg = batch.get(i).segment();
+                    int j = i;
+                    int size = 0;
+                    while (j < batch.size() && batch.get(j).segment() == seg) size += batch.get(j++).record().length;
+                    if (seg != open) {
+                        if (channel != null) { channel.force(false); channel.close(); }
+                        channel = FileChannel.open(seg.path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                        open = seg;
+                    }
+                    ByteBuffer buf = ByteBuffer.allocate(size);
+                    for (; i < j; i++) buf.put(batch.get(i).record());
+                    buf.flip();
+                    while (buf.hasRemaining()) channel.write(buf);
+                }
+                if (channel != null) channel.force(false);
+                flush.complete(null);
+            } catch (IOException e) {
+                logErr("Write to %s failed: %s", dir, e.getMessage());
+                flush.completeExceptionally(e);
+            }
+            synchronized (this) {
+                writing = null;
+            }
+
+            deleteAcknowledgedSegments();
+
+            if (last) {
+                try { if (channel != null) channel.close(); } catch (IOException ignored) { }
+                return;
+            }
+        }
+    }
+
+    /** Oldest-first, so an acknowledgement is never deleted before the job it refers to. */
+    private void deleteAcknowledgedSegments() {
+        List<Path> done = new ArrayList<>();
+        synchronized (this) {
+            while (!segments.isEmpty()) {
+                Segment s = segments.firstEntry().getValue();
+                if (s == current || s.live > 0) break;
+                segments.pollFirstEntry();
+                done.add(s.path);
+            }
+        }
+        for (Path p : done) {
+            try { Files.deleteIfExists(p); } catch (IOException e) { logErr("Could not delete %s: %s", p, e.getMessage()); }
+        }
+    }
+
+    /* ===== recovery ===== */
+
+    /** Reads the segments left on disk; returns the highest sequence number seen. */
+    private long recover() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "segment-*.wal")) {
+            ds.forEach(files::add);
+        }
+        files.sort(null); // zero-padded names sort by first sequence number
+
+        Map<Long, Map.Entry<String, ScimJob>> jobs = new LinkedHashMap<>();
+        Map<String, Long> acked = new HashMap<>();
+        long maxSeq = 0;
+        for (Path file : files) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+                byte[] payload;
+                while ((payload = readRecord(in)) != null) {
+                    DataInputStream rec = new DataInputStream(new ByteArrayInputStream(payload));
+                    byte type = rec.readByte();
+                    if (type == JOB) {
+                        long seq = rec.readLong();
+                        String key = rec.readUTF();
+                        jobs.put(seq, Map.entry(key, JobCodec.read(rec)));
+                        maxSeq = Math.max(maxSeq, seq);
+                    } else if (type == ACK) {
+                        String key = rec.readUTF();
+                        acked.merge(key, rec.readLong(), Math::max);
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                logErr("Stopped reading %s at a damaged record: %s", file.getFileName(), e.getMessage());
+            }
+        }
+
+        List<ScimJob> left = new ArrayList<>();
+        jobs.forEach((seq, e) -> {
+            if (seq > acked.getOrDefault(e.getKey(), 0L)) left.add(e.getValue());
+        });
+        this.oldSegments = files;
+        this.recovered = left;
+        if (!files.isEmpty()) {
+            logInfo("Read %d segment(s) from %s: %d unfinished job(s)", files.size(), dir, left.size());
+        }
+        return maxSeq;
+    }
+
+    /** Next record's payload, or null at the end of the segment or at a torn / corrupt record. */
+    private static byte[] readRecord(DataInputStream in) throws IOException {
+        int len;
+        try {
+            len = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (len <= 0 || len > SEGMENT_BYTES) return null;
+        int crc;
+        byte[] payload = new byte[len];
+        try {
+            crc = in.readInt();
+            in.readFully(payload);
+        } catch (EOFException e) {
+            return null;
+        }
+        return (crc32(payload) == crc) ? payload : null;
+    }
+
+    /* ===== encoding ===== */
+
+    private static byte[] frame(byte[] payload) {
+        return ByteBuffer.allocate(8 + payload.length)
+                .putInt(payload.length)
+                .putInt(crc32(payload))
+                .put(payload)
+                .array();
+    }
+
+    private static int crc32(byte[] b) {
+        CRC32 crc = new CRC32();
+        crc.update(b);
+        return (int) crc.getValue();
+    }
+
+    private static byte[] encodeJob(long seq, String key, ScimJob job) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(JOB);
+            out.writeLong(seq);
+            out.writeUTF(key);
+            JobCodec.write(out, job);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] encodeAck(String key, long seq) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(ACK);
+            out.writeUTF(key);
+            out.writeLong(seq);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private Path segmentPath(long firstSeq) {
+        return dir.resolve(String.format("segment-%020d.wal", firstSeq));
+    }
+
+    private static final class Segment {
+        final Path path;
+        long bytes;
+        /** Jobs in this segment not acknowledged yet. */
+        int live;
+
+        Segment(Path path) {
+            this.path = path;
+        }
+    }
+
+    private record Pending(Segment segment, byte[] record) { }
+
+    /* ===== timestamped logging helpers ===== */
+    private static String now() { return java.time.OffsetDateTime.now().toString(); }
+    private static void logInfo(String fmt, Object... args) {
+        System.out.printf("%s [keycloak-scim-outbound][OUTBOX] %s%n", now(), String.format(fmt, args));
+    }
+    private static void logErr(String fmt, Object... args) {
+        System.err.printf("%s [keycloak-scim-outbound][OUTBOX] %s%n", now(), String.format(fmt, args));
+    }
+}
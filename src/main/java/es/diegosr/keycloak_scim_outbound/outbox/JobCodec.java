@@ -0,0 +1,79 @@
+package es.diegosr.keycloak_scim_outbound.outbox;
+
+import es.diegosr.keycloak_scim_outbound.dispatch.ScimJob;
+import es.diegosr.keycloak_scim_outbound.util.ScimUser;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * Compact binary form of a {@link ScimJob}, shared by the outbox implementations.
+ * The endpoint (and so the token) is not part of it; decoded jobs have a null endpoint.
+ */
+final class JobCodec {
+    private JobCodec() { }
+
+    static byte[] toBytes(ScimJob job) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            write(out, job);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    static ScimJob fromBytes(byte[] bytes) {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+            return read(in);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static void write(DataOutputStream out, ScimJob job) throws IOException {
+        out.writeUTF(job.action().name());
+        writeStr(out, job.origin());
+        writeStr(out, job.realmId());
+        writeStr(out, job.realmName());
+        writeStr(out, job.targetId());
+        writeStr(out, job.targetName());
+        writeStr(out, job.userId());
+        writeStr(out, job.scimUserName());
+        writeStr(out, job.scimId());
+        ScimUser u = job.user();
+        out.writeBoolean(u != null);
+        if (u != null) {
+            writeStr(out, u.userName());
+            writeStr(out, u.givenName());
+            writeStr(out, u.familyName());
+            writeStr(out, u.email());
+            out.writeBoolean(u.active());
+        }
+    }
+
+    static ScimJob read(DataInputStream in) throws IOException {
+        ScimJob.Action action = ScimJob.Action.valueOf(in.readUTF());
+        String origin = readStr(in), realmId = readStr(in), realmName = readStr(in);
+        String targetId = readStr(in), targetName = readStr(in);
+        String userId = readStr(in), scimUserName = readStr(in), scimId = readStr(in);
+        ScimUser user = null;
+        if (in.readBoolean()) {
+            user = new ScimUser(readStr(in), readStr(in), readStr(in), readStr(in), in.readBoolean());
+        }
+        return new ScimJob(action, origin, realmId, realmName, targetId, targetName, null, userId, scimUserName, scimId, user);
+    }
+
+    private static void writeStr(DataOutputStream out, String s) throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null) out.writeUTF(s);
+    }
+
+    private static String readStr(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
@@ -0,0 +1,72 @@
+package es.diegosr.keycloak_scim_outbound.outbox;
+
+import es.diegosr.keycloak_scim_outbound.dispatch.ScimJob;
+
+import org.keycloak.models.KeycloakSession;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Durable record of the jobs the dispatcher has accepted but not finished yet.
+ * A job is appended before it is queued and acknowledged once it has run; whatever
+ * was not acknowledged when the node stopped is handed back by {@link #recovered()}.
+ *
+ * Jobs are journaled without their {@link ScimJob#endpoint()}: the token is never written
+ * to disk, and replayed jobs get the target's current settings from its component.
+ */
+public interface JobJournal extends AutoCloseable {
+
+    /** Journal that keeps nothing (the outbox is disabled). */
+    JobJournal NONE = new JobJournal() {
+        @Override public long append(String key, ScimJob job) { return 0; }
+        @Override public CompletableFuture<Void> flushed() { return CompletableFuture.completedFuture(null); }
+        @Override public void ack(String key, long seq) { }
+        @Override public List<ScimJob> recovered() { return List.of(); }
+        @Override public void compact() { }
+        @Override public void close() { }
+    };
+
+    /**
+     * Store {@code job} as part of {@code session}'s own transaction, so it exists if and only if
+     * the change that produced it is committed. Returns false if this journal cannot do that; the
+     * caller then hands the job to the dispatcher after commit as usual.
+     */
+    default boolean enqueue(KeycloakSession session, String key, ScimJob job) {
+        return false;
+    }
+
+    /**
+     * True if every node runs jobs from this journal, so a user's consecutive jobs may be pushed by
+     * different nodes and no node can assume it knows what a target last received.
+     */
+    default boolean shared() {
+        return false;
+    }
+
+    /** Record {@code job} under coalescing key {@code key}; returns its sequence number. */
+    long append(String key, ScimJob job);
+
+    /**
+     * Record a job this journal already holds as entry {@code entryId} (stored by {@link #enqueue}
+     * and handed back to the dispatcher), so acknowledging it finishes that entry.
+     */
+    default long append(String key, ScimJob job, String entryId) {
+        return append(key, job);
+    }
+
+    /** Completes once everything appended so far is on stable storage. */
+    CompletableFuture<Void> flushed();
+
+    /** Every job appended under {@code key} up to sequence {@code seq} is done. */
+    void ack(String key, long seq);
+
+    /** Jobs left unacknowledged by the previous run, oldest first (endpoint not set). */
+    List<ScimJob> recovered();
+
+    /** Forget {@link #recovered()} jobs; call once they have been appended again (or given up). */
+    void compact();
+
+    @Override
+    void close();
+}
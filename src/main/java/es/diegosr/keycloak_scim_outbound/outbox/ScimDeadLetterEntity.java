@@ -0,0 +1,102 @@
+package es.diegosr.keycloak_scim_outbound.outbox;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.NamedQueries;
+import jakarta.persistence.NamedQuery;
+import jakarta.persistence.Table;
+
+/**
+ * A job that failed for good (table {@code SCIM_DEAD_LETTER}), kept with the reason and the
+ * start of the target's response until it is replayed. A replay marks the row ({@code replayedAt})
+ * when it re-submits the job and deletes it once the job has run.
+ */
+@Entity
+@Table(name = "SCIM_DEAD_LETTER")
+@NamedQueries({
+        @NamedQuery(name = "ScimDeadLetter.byTarget", query =
+                "select d from ScimDeadLetterEntity d where d.realmId = :realmId and d.targetId = :targetId"
+                + " order by d.failedAt"),
+        @NamedQuery(name = "ScimDeadLetter.replayable", query =
+                "select d from ScimDeadLetterEntity d where d.realmId = :realmId and d.targetId = :targetId"
+                + " and d.failedAt <= :before and (d.replayedAt = 0 or d.replayedAt < :markedBefore) order by d.failedAt"),
+        @NamedQuery(name = "ScimDeadLetter.claim", query =
+                "update ScimDeadLetterEntity d set d.replayedAt = :now where d.id = :id and d.replayedAt = :seen"),
+        @NamedQuery(name = "ScimDeadLetter.deleteIds", query =
+                "delete from ScimDeadLetterEntity d where d.id in :ids"),
+        @NamedQuery(name = "ScimDeadLetter.countByTarget", query =
+                "select count(d) from ScimDeadLetterEntity d where d.realmId = :realmId and d.targetId = :targetId")
+})
+public class ScimDeadLetterEntity {
+
+    @Id
+    @Column(name = "ID", length = 36)
+    private String id;
+
+    @Column(name = "REALM_ID", nullable = false, length = 36)
+    private String realmId;
+
+    @Column(name = "TARGET_ID", nullable = false, length = 36)
+    private String targetId;
+
+    @Column(name = "USER_ID", length = 36)
+    private String userId;
+
+    @Column(name = "SCIM_USER_NAME")
+    private String scimUserName;
+
+    @Column(name = "FAILED_AT", nullable = false)
+    private long failedAt;
+
+    /** HTTP status of the last response, or -1 if none was received. */
+    @Column(name = "STATUS", nullable = false)
+    private int status;
+
+    @Column(name = "REASON")
+    private String reason;
+
+    @Column(name = "RESPONSE_EXCERPT", length = 1000)
+    private String responseExcerpt;
+
+    /** Base64 of the {@link JobCodec} form of the job (no token). */
+    @Column(name = "PAYLOAD", nullable = false, length = 4000)
+    private String payload;
+
+    /** When a replay last claimed the row and re-submitted its job, 0 if never; see {@link DeadLetters#REPLAY_LEASE_MILLIS}. */
+    @Column(name = "REPLAYED_AT", nullable = false)
+    private long replayedAt;
+
+    public String getId() { return id; }
+    public void setId(String id) { this.id = id; }
+
+    public String getRealmId() { return realmId; }
+    public void setRealmId(String realmId) { this.realmId = realmId; }
+
+    public String getTargetId() { return targetId; }
+    public void setTargetId(String targetId) { this.targetId = targetId; }
+
+    public String getUserId() { return userId; }
+    public void setUserId(String userId) { this.userId = userId; }
+
+    public String getScimUserName() { return scimUserName; }
+    public void setScimUserName(String scimUserName) { this.scimUserName = scimUserName; }
+
+    public long getFailedAt() { return failedAt; }
+    public void setFailedAt(long failedAt) { this.failedAt = failedAt; }
+
+    public int getStatus() { return status; }
+    public void setStatus(int status) { this.status = status; }
+
+    public String getReason() { return reason; }
+    public void setReason(String reason) { this.reason = reason; }
+
+    public String getResponseExcerpt() { return responseExcerpt; }
+    public void setResponseExcerpt(String responseExcerpt) { this.responseExcerpt = responseExcerpt; }
+
+    public String getPayload() { return payload; }
+    public void setPayload(String payload) { this.payload = payload; }
+
+    public long getReplayedAt() { return replayedAt; }
+    public void setReplayedAt(long replayedAt) { this.replayedAt = replayedAt; }
+}
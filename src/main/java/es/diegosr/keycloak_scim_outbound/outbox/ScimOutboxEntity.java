@@ -0,0 +1,70 @@
+package es.diegosr.keycloak_scim_outbound.outbox;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.NamedQueries;
+import jakarta.persistence.NamedQuery;
+import jakarta.persistence.Table;
+
+/**
+ * One pending SCIM job in the database outbox (table {@code SCIM_OUTBOX}).
+ * Inserted in the transaction of the user change; claimed by a node through a lease
+ * ({@code claimedBy}/{@code claimedUntil}) and deleted once the job has run.
+ */
+@Entity
+@Table(name = "SCIM_OUTBOX")
+@NamedQueries({
+        // Oldest row of each key that nobody holds a live lease on (one row per key, so a key is never split across nodes).
+        @NamedQuery(name = "ScimOutbox.claimable", query =
+                "select o from ScimOutboxEntity o where o.claimedUntil < :now"
+                + " and o.createdAt = (select min(p.createdAt) from ScimOutboxEntity p where p.coalescingKey = o.coalescingKey)"
+                + " and not exists (select q.id from ScimOutboxEntity q where q.coalescingKey = o.coalescingKey and q.claimedUntil >= :now)"
+                + " order by o.createdAt"),
+        @NamedQuery(name = "ScimOutbox.byKey", query =
+                "select o from ScimOutboxEntity o where o.coalescingKey = :key order by o.createdAt"),
+        @NamedQuery(name = "ScimOutbox.renew", query =
+                "update ScimOutboxEntity o set o.claimedUntil = :until where o.claimedBy = :node and o.id in :ids"),
+        @NamedQuery(name = "ScimOutbox.deleteIds", query =
+                "delete from ScimOutboxEntity o where o.claimedBy = :node and o.id in :ids")
+})
+public class ScimOutboxEntity {
+
+    @Id
+    @Column(name = "ID", length = 36)
+    private String id;
+
+    @Column(name = "CREATED_AT", nullable = false)
+    private long createdAt;
+
+    @Column(name = "COALESCING_KEY", nullable = false)
+    private String coalescingKey;
+
+    /** Base64 of the {@link JobCodec} form of the job (no token). */
+    @Column(name = "PAYLOAD", nullable = false, length = 4000)
+    private String payload;
+
+    @Column(name = "CLAIMED_BY", length = 36)
+    private String claimedBy;
+
+    @Column(name = "CLAIMED_UNTIL", nullable = false)
+    private long claimedUntil;
+
+    public String getId() { return id; }
+    public void setId(String id) { this.id = id; }
+
+    public long getCreatedAt() { return createdAt; }
+    public void setCreatedAt(long createdAt) { this.createdAt = createdAt; }
+
+    public String getCoalescingKey() { return coalescingKey; }
+    public void setCoalescingKey(String coalescingKey) { this.coalescingKey = coalescingKey; }
+
+    public String getPayload() { return payload; }
+    public void setPayload(String payload) { this.payload = payload; }
+
+    public String getClaimedBy() { return claimedBy; }
+    public void setClaimedBy(String claimedBy) { this.claimedBy = claimedBy; }
+
+    public long getClaimedUntil() { return claimedUntil; }
+    public void setClaimedUntil(long claimedUntil) { this.claimedUntil = claimedUntil; }
+}
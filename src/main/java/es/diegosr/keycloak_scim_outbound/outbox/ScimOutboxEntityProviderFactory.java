@@ -0,0 +1,51 @@
+package es.diegosr.keycloak_scim_outbound.outbox;
+
+import org.keycloak.Config;
+import org.keycloak.connections.jpa.entityprovider.JpaEntityProvider;
+import org.keycloak.connections.jpa.entityprovider.JpaEntityProviderFactory;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+
+import java.util.List;
+
+/**
+ * Registers {@link ScimOutboxEntity} and {@link ScimDeadLetterEntity} with Keycloak's persistence
+ * unit and creates their tables through the Liquibase changelog shipped in this jar.
+ */
+public class ScimOutboxEntityProviderFactory implements JpaEntityProviderFactory, JpaEntityProvider {
+    public static final String ID = "scim-outbox";
+
+    @Override
+    public JpaEntityProvider create(KeycloakSession session) {
+        return this;
+    }
+
+    @Override
+    public List<Class<?>> getEntities() {
+        return List.of(ScimOutboxEntity.class, ScimDeadLetterEntity.class);
+    }
+
+    @Override
+    public String getChangelogLocation() {
+        return "META-INF/scim-outbox-changelog.xml";
+    }
+
+    @Override
+    public String getFactoryId() {
+        return ID;
+    }
+
+    @Override
+    public void init(Config.Scope config) { }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) { }
+
+    @Override
+    public void close() { }
+
+    @Override
+    public String getId() {
+        return ID;
+    }
+}
@@ -0,0 +1,41 @@
+package es.diegosr.keycloak_scim_outbound.ui;
+
+import es.diegosr.keycloak_scim_outbound.http.ScimEndpoint;
+
+import org.keycloak.models.UserModel;
+
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * One SCIM target component with its configuration already parsed, as used on every event:
+ * the endpoint is built, the userName strategy is a function and the filter group is the set
+ * of ids of the realm's groups carrying that name. Built by
+ * {@link ScimTargetProviderFactory#target}; immutable, so it is shared between sessions.
+ *
+ * @param filterGroup    configured filter group name, or null if every user is provisioned
+ * @param filterGroupIds ids of the groups named {@code filterGroup} (empty if none exists)
+ * @param userName       SCIM userName of a user under the configured strategy (null if unresolvable)
+ */
+public record ScimTarget(String id, String name, ScimEndpoint endpoint, String filterGroup,
+                         Set<String> filterGroupIds, Function<UserModel, String> userName) {
+
+    /** False if base URL or token is missing; such a target is skipped. */
+    public boolean complete() {
+        return endpoint.baseUrl() != null && endpoint.token() != null;
+    }
+
+    public boolean filtered() {
+        return filterGroup != null;
+    }
+
+    /** True if the user is a direct member of one of the filter groups. */
+    public boolean inFilterGroup(UserModel user) {
+        return user.getGroupsStream().anyMatch(g -> filterGroupIds.contains(g.getId()));
+    }
+
+    /** SCIM userName of {@code user}; {@code fallback} when the user is gone (best-effort on deletes). */
+    public String scimUserName(UserModel user, String fallback) {
+        return (user != null) ? userName.apply(user) : fallback;
+    }
+}
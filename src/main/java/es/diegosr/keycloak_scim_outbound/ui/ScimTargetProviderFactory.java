@@ -1,14 +1,24 @@
 package es.diegosr.keycloak_scim_outbound.ui;
 
+import es.diegosr.keycloak_scim_outbound.ScimEventListenerProviderFactory;
+import es.diegosr.keycloak_scim_outbound.http.ScimEndpoint;
+
 import org.keycloak.component.ComponentModel;
 import org.keycloak.component.ComponentValidationException;
+import org.keycloak.events.EventListenerProvider;
+import org.keycloak.models.GroupModel;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.KeycloakSessionFactory;
 import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
 import org.keycloak.provider.ProviderConfigProperty;
 import org.keycloak.storage.UserStorageProviderFactory;
 
 import java.util.List;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * UI-configurable provider (shows up under: Realm → User Federation → Add provider).
@@ -30,6 +40,12 @@ public class ScimTargetProviderFactory implements UserStorageProviderFactory<Sci
     /** Attribute name when strategy=attribute */
     public static final String CFG_UNAME_ATTR     = "userNameAttribute";
 
+    /** Max concurrent HTTP requests to this target (optional) */
+    public static final String CFG_MAX_IN_FLIGHT  = "maxInFlight";
+    /** Request rate limit of this target: requests per second and burst size (optional) */
+    public static final String CFG_RATE_LIMIT     = "requestsPerSecond";
+    public static final String CFG_RATE_BURST     = "rateBurst";
+
     private static ProviderConfigProperty list(String help, String name, List<String> options, String def, boolean required) {
         ProviderConfigProperty p = new ProviderConfigProperty();
         p.setType(ProviderConfigProperty.LIST_TYPE);
@@ -54,7 +70,15 @@ public class ScimTargetProviderFactory implements UserStorageProviderFactory<Sci
             CFG_UNAME_STRATEGY, List.of("username","email","attribute"), "username", true),
 
         prop(ProviderConfigProperty.STRING_TYPE,  CFG_UNAME_ATTR,
-            "User attribute name to read when 'userNameStrategy=attribute' (e.g. scim_username).", false, "UserName Attribute")
+            "User attribute name to read when 'userNameStrategy=attribute' (e.g. scim_username).", false, "UserName Attribute"),
+
+        prop(ProviderConfigProperty.STRING_TYPE,  CFG_MAX_IN_FLIGHT,
+            "Max concurrent HTTP requests to this target (default " + ScimEndpoint.DEFAULT_MAX_IN_FLIGHT + "). The actual limit adapts to the target's latency and errors below this ceiling; extra requests wait in a queue.", false, "Max in-flight requests"),
+
+        prop(ProviderConfigProperty.STRING_TYPE,  CFG_RATE_LIMIT,
+            "Max average HTTP requests per second to this target (empty = no limit). Requests over the rate wait in a queue.", false, "Requests per second"),
+        prop(ProviderConfigProperty.STRING_TYPE,  CFG_RATE_BURST,
+            "Requests that may be sent at once before the rate limit applies (default: the requests per second).", false, "Rate limit burst")
     );
 
     @Override
@@ -86,6 +110,10 @@ public class ScimTargetProviderFactory implements UserStorageProviderFactory<Sci
             throw new ComponentValidationException("SCIM Base URL must start with http:// or https://");
         }
 
+        requirePositiveInt(model, CFG_MAX_IN_FLIGHT, "Max in-flight requests must be a positive integer");
+        requirePositiveInt(model, CFG_RATE_LIMIT,    "Requests per second must be a positive integer");
+        requirePositiveInt(model, CFG_RATE_BURST,    "Rate limit burst must be a positive integer");
+
         String strategy = get(model, CFG_UNAME_STRATEGY, "username");
         switch (strategy) {
             case "username":
@@ -104,6 +132,29 @@ public class ScimTargetProviderFactory implements UserStorageProviderFactory<Sci
         return PROPS;
     }
 
+    @Override
+    public void onCreate(KeycloakSession session, RealmModel realm, ComponentModel model) {
+        notifyListener(session, realm, model, false);
+    }
+
+    @Override
+    public void onUpdate(KeycloakSession session, RealmModel realm, ComponentModel oldModel, ComponentModel newModel) {
+        notifyListener(session, realm, newModel, false);
+    }
+
+    @Override
+    public void preRemove(KeycloakSession session, RealmModel realm, ComponentModel model) {
+        notifyListener(session, realm, model, true);
+    }
+
+    /** Let the event listener drop cached state (compiled targets, HTTP clients, ...) for this target. */
+    private static void notifyListener(KeycloakSession session, RealmModel realm, ComponentModel model, boolean removed) {
+        var f = session.getKeycloakSessionFactory().getProviderFactory(EventListenerProvider.class, ID);
+        if (f instanceof ScimEventListenerProviderFactory listener) {
+            listener.onTargetChanged(session, realm.getId(), model.getId(), removed ? null : endpoint(model));
+        }
+    }
+
     /* ===== Helpers ===== */
 
     private static ProviderConfigProperty prop(String type, String name, String help,
@@ -127,6 +178,64 @@ public class ScimTargetProviderFactory implements UserStorageProviderFactory<Sci
         }
     }
 
+    private static void requirePositiveInt(ComponentModel model, String key, String msg)
+            throws ComponentValidationException {
+        String v = get(model, key, null);
+        if (v == null || v.isBlank()) return;
+        try {
+            if (Integer.parseInt(v.trim()) <= 0) throw new ComponentValidationException(msg);
+        } catch (NumberFormatException e) {
+            throw new ComponentValidationException(msg);
+        }
+    }
+
+    /** HTTP settings of a target component. */
+    public static ScimEndpoint endpoint(ComponentModel m) {
+        return new ScimEndpoint(get(m, CFG_BASE_URL, null), get(m, CFG_TOKEN, null), getInt(m, CFG_MAX_IN_FLIGHT, 0),
+                getInt(m, CFG_RATE_LIMIT, 0), getInt(m, CFG_RATE_BURST, 0));
+    }
+
+    /** Target component with its configuration parsed once; the filter group is looked up in {@code realm}. */
+    public static ScimTarget target(KeycloakSession session, RealmModel realm, ComponentModel m) {
+        String group = get(m, CFG_FILTER_GROUP, null);
+        if (group != null && group.isBlank()) group = null;
+        final String groupName = group;
+        // An exact name search returns the top-level groups whose hierarchy holds a match, not the matches themselves.
+        Set<String> groupIds = (groupName == null) ? Set.of()
+                : session.groups().searchForGroupByNameStream(realm, groupName, true, null, null)
+                        .flatMap(ScimTargetProviderFactory::withSubGroups)
+                        .filter(g -> groupName.equals(g.getName()))
+                        .map(g -> g.getId())
+                        .collect(Collectors.toUnmodifiableSet());
+        return new ScimTarget(m.getId(), m.getName(), endpoint(m), groupName, groupIds, userNameStrategy(m));
+    }
+
+    private static Stream<GroupModel> withSubGroups(GroupModel g) {
+        return Stream.concat(Stream.of(g), g.getSubGroupsStream().flatMap(ScimTargetProviderFactory::withSubGroups));
+    }
+
+    /** The configured userName strategy as a function (unknown strategies fall back to the username). */
+    private static Function<UserModel, String> userNameStrategy(ComponentModel m) {
+        switch (get(m, CFG_UNAME_STRATEGY, "username")) {
+            case "email":
+                return u -> blankToNull(u.getEmail());
+            case "attribute":
+                String attr = get(m, CFG_UNAME_ATTR, null);
+                if (attr == null) return u -> null;
+                return u -> blankToNull(u.getFirstAttribute(attr));
+            default:
+                return UserModel::getUsername;
+        }
+    }
+
+    private static String blankToNull(String s) { return (s == null || s.isBlank()) ? null : s; }
+
+    public static int getInt(ComponentModel m, String key, int def) {
+        String v = get(m, key, null);
+        if (v == null || v.isBlank()) return def;
+        try { return Integer.parseInt(v.trim()); } catch (NumberFormatException e) { return def; }
+    }
+
     public static String get(ComponentModel m, String key, String def) {
         String v = m.getConfig().getFirst(key);
         return v != null ? v : def;
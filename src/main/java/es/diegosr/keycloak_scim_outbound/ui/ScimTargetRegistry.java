@@ -0,0 +1,69 @@
+package es.diegosr.keycloak_scim_outbound.ui;
+
+import es.diegosr.keycloak_scim_outbound.util.ExpiringCache;
+
+import org.keycloak.models.AbstractKeycloakTransaction;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakTransactionManager;
+import org.keycloak.models.RealmModel;
+
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * Node-wide cache of each realm's compiled {@link ScimTarget}s, so events do not list the
+ * realm's components and parse their configuration every time.
+ *
+ * A realm is dropped when one of its targets is created, updated or removed, and when a group
+ * changes (filter groups are held as ids). Those notifications only reach the node where the
+ * change was made, so entries also expire after {@link #TTL} to pick up changes made elsewhere
+ * in a cluster.
+ */
+public final class ScimTargetRegistry {
+    static final Duration TTL = Duration.ofSeconds(60);
+    private static final int MAX_REALMS = 1_000;
+
+    private final ExpiringCache<String, List<ScimTarget>> byRealm = new ExpiringCache<>(MAX_REALMS, TTL);
+    /** Bumped on every invalidation; a list compiled across one is not cached (it may predate the change). */
+    private long generation;
+
+    /** Targets of {@code realm}, compiled on first use. */
+    public List<ScimTarget> targets(KeycloakSession session, RealmModel realm) {
+        List<ScimTarget> cached = byRealm.get(realm.getId());
+        if (cached != null) return cached;
+
+        long seen = generation();
+        List<ScimTarget> compiled = realm.getComponentsStream()
+                .filter(c -> ScimTargetProviderFactory.ID.equals(c.getProviderId()))
+                .map(c -> ScimTargetProviderFactory.target(session, realm, c))
+                .toList();
+        synchronized (this) {
+            if (generation == seen) byRealm.put(realm.getId(), compiled);
+        }
+        return compiled;
+    }
+
+    /** Forget the compiled targets of a realm. */
+    public synchronized void invalidate(String realmId) {
+        generation++;
+        if (realmId != null) byRealm.remove(realmId);
+    }
+
+    /**
+     * Forget the compiled targets of a realm now and again once the session's transaction ends:
+     * an event compiling the realm before the commit would still see the old configuration.
+     */
+    public void invalidate(KeycloakSession session, String realmId) {
+        invalidate(realmId);
+        KeycloakTransactionManager tm = session.getTransactionManager();
+        if (tm == null || !tm.isActive()) return;
+        tm.enlistAfterCompletion(new AbstractKeycloakTransaction() {
+            @Override protected void commitImpl() { invalidate(realmId); }
+            @Override protected void rollbackImpl() { invalidate(realmId); }
+        });
+    }
+
+    private synchronized long generation() {
+        return generation;
+    }
+}
@@ -0,0 +1,79 @@
+package es.diegosr.keycloak_scim_outbound.util;
+
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Small thread-safe map whose entries expire after a fixed TTL and whose size is capped.
+ * Entries are kept in insertion order, so expired ones are always at the head and are
+ * purged on every write; when the cap is reached the oldest entry is evicted.
+ */
+public final class ExpiringCache<K, V> {
+    private final long ttlNanos;
+    private final int maxSize;
+    private final LinkedHashMap<K, Entry<V>> map;
+
+    private record Entry<V>(V value, long expiresAt) { }
+
+    public ExpiringCache(int maxSize, Duration ttl) {
+        this.maxSize = Math.max(1, maxSize);
+        this.ttlNanos = ttl.toNanos();
+        this.map = new LinkedHashMap<>(16, 0.75f, false) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+                return size() > ExpiringCache.this.maxSize;
+            }
+        };
+    }
+
+    /** Live value for {@code key}, or null if absent or expired. */
+    public synchronized V get(K key) {
+        Entry<V> e = map.get(key);
+        if (e == null) return null;
+        if (e.expiresAt - System.nanoTime() <= 0) {
+            map.remove(key);
+            return null;
+        }
+        return e.value;
+    }
+
+    /** Stores {@code value} with a fresh TTL. */
+    public synchronized void put(K key, V value) {
+        long now = System.nanoTime();
+        purge(now);
+        map.remove(key); // re-insert at the tail so the head stays the oldest
+        map.put(key, new Entry<>(value, now + ttlNanos));
+    }
+
+    /** Stores {@code value} unless a live entry exists; returns that live value, or null if stored. */
+    public synchronized V putIfAbsent(K key, V value) {
+        V current = get(key);
+        if (current != null) return current;
+        put(key, value);
+        return null;
+    }
+
+    public synchronized V remove(K key) {
+        Entry<V> e = map.remove(key);
+        return e != null ? e.value : null;
+    }
+
+    /** Removes every entry mapped to {@code value}; linear, meant for rare invalidations. */
+    public synchronized void removeValue(V value) {
+        map.values().removeIf(e -> java.util.Objects.equals(e.value, value));
+    }
+
+    public synchronized int size() {
+        return map.size();
+    }
+
+    private void purge(long now) {
+        Iterator<Entry<V>> it = map.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().expiresAt - now > 0) break;
+            it.remove();
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package es.diegosr.keycloak_scim_outbound.util;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tiny JSON tree reader for the few SCIM responses we need to inspect as a whole
+ * (ServiceProviderConfig, BulkResponse), built on {@link JsonReader}. Objects become
+ * {@code Map<String,Object>}, arrays {@code List<Object>}, numbers {@code Long}/{@code Double}.
+ */
+public final class Json {
+    private Json() { }
+
+    /** Parse a JSON document; throws IllegalArgumentException on malformed input. */
+    public static Object parse(String text) {
+        if (text == null) throw new IllegalArgumentException("null JSON");
+        try {
+            JsonReader r = JsonReader.of(text);
+            Object v = read(r);
+            r.peek(); // END_DOCUMENT, or "trailing data"
+            return v;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // not thrown by a StringReader
+        }
+    }
+
+    /** The next value of {@code r} as a tree. */
+    public static Object read(JsonReader r) throws IOException {
+        switch (r.peek()) {
+            case BEGIN_OBJECT -> {
+                Map<String, Object> m = new LinkedHashMap<>();
+                r.beginObject();
+                while (r.hasNext()) m.put(r.nextName(), read(r));
+                r.endObject();
+                return m;
+            }
+            case BEGIN_ARRAY -> {
+                List<Object> l = new ArrayList<>();
+                r.beginArray();
+                while (r.hasNext()) l.add(read(r));
+                r.endArray();
+                return l;
+            }
+            case STRING -> { return r.nextString(); }
+            case NUMBER -> { return r.nextNumber(); }
+            case BOOLEAN -> { return r.nextBoolean(); }
+            case NULL -> { r.nextNull(); return null; }
+            default -> throw r.error("unexpected " + r.peek());
+        }
+    }
+
+    /* ===== navigation helpers ===== */
+
+    /** {@code obj[key]} if obj is an object, else null. */
+    @SuppressWarnings("unchecked")
+    public static Object get(Object obj, String key) {
+        return (obj instanceof Map) ? ((Map<String, Object>) obj).get(key) : null;
+    }
+
+    /** Nested lookup, e.g. {@code path(cfg, "bulk", "maxOperations")}. */
+    public static Object path(Object obj, String... keys) {
+        Object cur = obj;
+        for (String k : keys) cur = get(cur, k);
+        return cur;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static List<Object> list(Object v) {
+        return (v instanceof List) ? (List<Object>) v : List.of();
+    }
+
+    public static boolean bool(Object v, boolean def) {
+        if (v instanceof Boolean b) return b;
+        if (v instanceof String str) return Boolean.parseBoolean(str);
+        return def;
+    }
+
+    public static long num(Object v, long def) {
+        if (v instanceof Number n) return n.longValue();
+        if (v instanceof String str) {
+            try { return Long.parseLong(str.trim()); } catch (NumberFormatException ignored) { return def; }
+        }
+        return def;
+    }
+
+    public static String str(Object v) {
+        return (v == null) ? null : String.valueOf(v);
+    }
+}
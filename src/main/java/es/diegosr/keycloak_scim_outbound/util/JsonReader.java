@@ -0,0 +1,287 @@
+package es.diegosr.keycloak_scim_outbound.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Pull-style streaming JSON reader: the caller walks the document token by token
+ * ({@link #peek()}, {@link #beginObject()}, {@link #nextName()}, ...) and may stop at any
+ * point, so only the part of a response that is actually needed is read. Values that are not
+ * needed are passed over with {@link #skipValue()} without building strings.
+ *
+ * Reads through a fixed char buffer; malformed input throws IllegalArgumentException.
+ */
+public final class JsonReader implements Closeable {
+    public enum Token { BEGIN_OBJECT, END_OBJECT, BEGIN_ARRAY, END_ARRAY, NAME, STRING, NUMBER, BOOLEAN, NULL, END_DOCUMENT }
+
+    /* Scopes on the stack: where we are and what may come next. */
+    private static final int EMPTY_ARRAY = 1;
+    private static final int NONEMPTY_ARRAY = 2;
+    private static final int EMPTY_OBJECT = 3;
+    private static final int DANGLING_NAME = 4;
+    private static final int NONEMPTY_OBJECT = 5;
+    private static final int EMPTY_DOCUMENT = 6;
+    private static final int NONEMPTY_DOCUMENT = 7;
+
+    private final Reader in;
+    private final char[] buf = new char[2048];
+    private int pos;
+    private int limit;
+    /** Chars consumed before buf[0], for error positions. */
+    private long offset;
+
+    private int[] stack = new int[16];
+    private int depth;
+    private Token peeked;
+    private final StringBuilder sb = new StringBuilder();
+
+    public JsonReader(Reader in) {
+        this.in = in;
+        stack[depth++] = EMPTY_DOCUMENT;
+    }
+
+    public static JsonReader of(String text) {
+        return new JsonReader(new StringReader(text));
+    }
+
+    /** Reads UTF-8, as SCIM requires. */
+    public static JsonReader of(InputStream in) {
+        return new JsonReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+    }
+
+    /** Type of the next token, without consuming it. */
+    public Token peek() throws IOException {
+        if (peeked != null) return peeked;
+        int scope = stack[depth - 1];
+        int c;
+        switch (scope) {
+            case EMPTY_ARRAY -> {
+                stack[depth - 1] = NONEMPTY_ARRAY;
+                if ((c = nextNonWhitespace()) == ']') return peeked = Token.END_ARRAY;
+                if (c == -1) throw error("unexpected end");
+                pos--;
+            }
+            case NONEMPTY_ARRAY -> {
+                if ((c = nextNonWhitespace()) == ']') return peeked = Token.END_ARRAY;
+                if (c != ',') throw error("expected , or ]");
+            }
+            case EMPTY_OBJECT, NONEMPTY_OBJECT -> {
+                stack[depth - 1] = DANGLING_NAME;
+                if ((c = nextNonWhitespace()) == '}') return peeked = Token.END_OBJECT;
+                if (scope == NONEMPTY_OBJECT) {
+                    if (c != ',') throw error("expected , or }");
+                    c = nextNonWhitespace();
+                }
+                if (c != '"') throw error("expected key");
+                return peeked = Token.NAME;
+            }
+            case DANGLING_NAME -> {
+                stack[depth - 1] = NONEMPTY_OBJECT;
+                if (nextNonWhitespace() != ':') throw error("expected :");
+            }
+            case EMPTY_DOCUMENT -> stack[depth - 1] = NONEMPTY_DOCUMENT;
+            default -> { // NONEMPTY_DOCUMENT
+                if (nextNonWhitespace() == -1) return peeked = Token.END_DOCUMENT;
+                throw error("trailing data");
+            }
+        }
+
+        c = nextNonWhitespace();
+        switch (c) {
+            case '{' -> peeked = Token.BEGIN_OBJECT;
+            case '[' -> peeked = Token.BEGIN_ARRAY;
+            case '"' -> peeked = Token.STRING;
+            case 't', 'f' -> { pos--; peeked = Token.BOOLEAN; }
+            case 'n' -> { pos--; peeked = Token.NULL; }
+            case -1 -> throw error("unexpected end");
+            default -> {
+                if (c != '-' && (c < '0' || c > '9')) throw error("unexpected character");
+                pos--;
+                peeked = Token.NUMBER;
+            }
+        }
+        return peeked;
+    }
+
+    /** True if the current object or array has another element. */
+    public boolean hasNext() throws IOException {
+        Token t = peek();
+        return t != Token.END_OBJECT && t != Token.END_ARRAY && t != Token.END_DOCUMENT;
+    }
+
+    public void beginObject() throws IOException {
+        consume(Token.BEGIN_OBJECT);
+        push(EMPTY_OBJECT);
+    }
+
+    public void endObject() throws IOException {
+        consume(Token.END_OBJECT);
+        depth--;
+    }
+
+    public void beginArray() throws IOException {
+        consume(Token.BEGIN_ARRAY);
+        push(EMPTY_ARRAY);
+    }
+
+    public void endArray() throws IOException {
+        consume(Token.END_ARRAY);
+        depth--;
+    }
+
+    public String nextName() throws IOException {
+        consume(Token.NAME);
+        return readString(true);
+    }
+
+    public String nextString() throws IOException {
+        consume(Token.STRING);
+        return readString(true);
+    }
+
+    public boolean nextBoolean() throws IOException {
+        consume(Token.BOOLEAN);
+        if (buf[pos] == 't') { literal("true"); return true; } // peek() left the first letter in the buffer
+        literal("false");
+        return false;
+    }
+
+    public void nextNull() throws IOException {
+        consume(Token.NULL);
+        literal("null");
+    }
+
+    /** A {@code Long}, or a {@code Double} for fractions and exponents. */
+    public Number nextNumber() throws IOException {
+        consume(Token.NUMBER);
+        sb.setLength(0);
+        boolean fraction = false;
+        int c;
+        while ((c = read()) != -1) {
+            if ((c >= '0' && c <= '9') || c == '-' || c == '+') { sb.append((char) c); continue; }
+            if (c == '.' || c == 'e' || c == 'E') { fraction = true; sb.append((char) c); continue; }
+            pos--;
+            break;
+        }
+        try {
+            return fraction ? (Number) Double.parseDouble(sb.toString()) : (Number) Long.parseLong(sb.toString());
+        } catch (NumberFormatException e) {
+            throw error("bad number");
+        }
+    }
+
+    /** Skip the next value, with everything nested in it; on a name, skip just the name. */
+    public void skipValue() throws IOException {
+        int nesting = 0;
+        do {
+            switch (peek()) {
+                case BEGIN_OBJECT -> { beginObject(); nesting++; }
+                case BEGIN_ARRAY -> { beginArray(); nesting++; }
+                case END_OBJECT -> { endObject(); nesting--; }
+                case END_ARRAY -> { endArray(); nesting--; }
+                case NAME, STRING -> { peeked = null; readString(false); }
+                case NUMBER -> nextNumber();
+                case BOOLEAN -> nextBoolean();
+                case NULL -> nextNull();
+                case END_DOCUMENT -> throw error("unexpected end");
+            }
+        } while (nesting > 0);
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    /** Position of the reader in the input, for error messages. */
+    public IllegalArgumentException error(String msg) {
+        return new IllegalArgumentException("Invalid JSON at " + (offset + pos) + ": " + msg);
+    }
+
+    /* ===== internals ===== */
+
+    private void consume(Token expected) throws IOException {
+        Token t = peek();
+        if (t != expected) throw error("expected " + expected + " but was " + t);
+        peeked = null;
+    }
+
+    private void push(int scope) {
+        if (depth == stack.length) stack = Arrays.copyOf(stack, depth * 2);
+        stack[depth++] = scope;
+    }
+
+    /** Reads a string whose opening quote is already consumed; keeps it only if asked to. */
+    private String readString(boolean keep) throws IOException {
+        sb.setLength(0);
+        while (true) {
+            // Copy plain runs straight from the buffer.
+            int start = pos;
+            while (pos < limit && buf[pos] != '"' && buf[pos] != '\\') pos++;
+            if (keep) sb.append(buf, start, pos - start);
+            if (pos == limit) {
+                if (!fill()) throw error("unterminated string");
+                continue;
+            }
+            if (buf[pos++] == '"') return keep ? sb.toString() : null;
+
+            int e = read();
+            char ch = switch (e) {
+                case '"', '\\', '/' -> (char) e;
+                case 'b' -> '\b';
+                case 'f' -> '\f';
+                case 'n' -> '\n';
+                case 'r' -> '\r';
+                case 't' -> '\t';
+                case 'u' -> unicodeEscape();
+                default -> throw error("bad escape");
+            };
+            if (keep) sb.append(ch);
+        }
+    }
+
+    private char unicodeEscape() throws IOException {
+        int v = 0;
+        for (int k = 0; k < 4; k++) {
+            int d = Character.digit(read(), 16);
+            if (d < 0) throw error("bad unicode escape");
+            v = (v << 4) | d;
+        }
+        return (char) v;
+    }
+
+    private void literal(String word) throws IOException {
+        for (int k = 0; k < word.length(); k++) {
+            if (read() != word.charAt(k)) throw error("unexpected literal");
+        }
+    }
+
+    private int nextNonWhitespace() throws IOException {
+        int c;
+        do { c = read(); } while (c == ' ' || c == '\t' || c == '\n' || c == '\r');
+        return c;
+    }
+
+    private int read() throws IOException {
+        if (pos == limit && !fill()) return -1;
+        return buf[pos++];
+    }
+
+    /** Refills the buffer once everything in it has been consumed. */
+    private boolean fill() throws IOException {
+        offset += limit;
+        pos = 0;
+        limit = 0;
+        int n;
+        do { n = in.read(buf, 0, buf.length); } while (n == 0);
+        if (n < 0) return false;
+        limit = n;
+        return true;
+    }
+}
@@ -0,0 +1,210 @@
+package es.diegosr.keycloak_scim_outbound.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Streaming JSON writer that encodes straight into a UTF-8 byte buffer, with full RFC 8259
+ * string escaping (quotes, backslash, every control character, and unpaired surrogates, which
+ * UTF-8 cannot carry). Commas and colons are inserted automatically.
+ *
+ * {@link #pooled()} hands out a per-thread writer whose buffer is reused between payloads,
+ * so building a request body allocates little more than the final {@code byte[]}.
+ * Not thread-safe; nesting is not validated beyond what the comma logic needs.
+ */
+public final class JsonWriter {
+    /** Pooled buffers that grew beyond this are dropped instead of kept for the next payload. */
+    private static final int MAX_POOLED_BYTES = 64 * 1024;
+    private static final ThreadLocal<JsonWriter> POOL = ThreadLocal.withInitial(() -> new JsonWriter(1024));
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    private byte[] buf;
+    private int len;
+    /** One bit per nesting level (up to 64): set once the container has an element. */
+    private long nonEmpty;
+    private int depth;
+    /** True right after a name: the next value needs no comma. */
+    private boolean afterName;
+
+    public JsonWriter(int initialCapacity) {
+        this.buf = new byte[Math.max(16, initialCapacity)];
+    }
+
+    /** This thread's writer, emptied. Finish with {@link #toByteArray()} before asking for it again. */
+    public static JsonWriter pooled() {
+        JsonWriter w = POOL.get();
+        if (w.buf.length > MAX_POOLED_BYTES) {
+            w = new JsonWriter(1024);
+            POOL.set(w);
+        }
+        return w.reset();
+    }
+
+    public JsonWriter reset() {
+        len = 0;
+        nonEmpty = 0;
+        depth = 0;
+        afterName = false;
+        return this;
+    }
+
+    public JsonWriter beginObject() { return open('{'); }
+
+    public JsonWriter endObject() { return close('}'); }
+
+    public JsonWriter beginArray() { return open('['); }
+
+    public JsonWriter endArray() { return close(']'); }
+
+    public JsonWriter name(String name) {
+        separator();
+        string(name);
+        put((byte) ':');
+        afterName = true;
+        return this;
+    }
+
+    /** A string value; null writes JSON null. */
+    public JsonWriter value(String s) {
+        separator();
+        if (s == null) ascii("null");
+        else string(s);
+        return this;
+    }
+
+    public JsonWriter value(boolean b) {
+        separator();
+        ascii(b ? "true" : "false");
+        return this;
+    }
+
+    public JsonWriter value(long n) {
+        separator();
+        ascii(Long.toString(n));
+        return this;
+    }
+
+    public JsonWriter nullValue() {
+        separator();
+        ascii("null");
+        return this;
+    }
+
+    /** An already encoded JSON value (UTF-8), copied as is. */
+    public JsonWriter rawValue(byte[] json) {
+        separator();
+        ensure(json.length);
+        System.arraycopy(json, 0, buf, len, json.length);
+        len += json.length;
+        return this;
+    }
+
+    /** Shorthand for {@code name(name).value(value)}. */
+    public JsonWriter field(String name, String value) { return name(name).value(value); }
+
+    public JsonWriter field(String name, boolean value) { return name(name).value(value); }
+
+    /** Bytes written so far. */
+    public int size() { return len; }
+
+    /** Copy of the bytes written so far. */
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buf, len);
+    }
+
+    /* ===== internals ===== */
+
+    private JsonWriter open(char c) {
+        separator();
+        put((byte) c);
+        depth++;
+        if (depth <= 64) nonEmpty &= ~(1L << (depth - 1));
+        return this;
+    }
+
+    private JsonWriter close(char c) {
+        put((byte) c);
+        depth--;
+        afterName = false;
+        return this;
+    }
+
+    /** Comma before every element of a container but the first (and none between a name and its value). */
+    private void separator() {
+        if (afterName) { afterName = false; return; }
+        if (depth == 0 || depth > 64) return;
+        long bit = 1L << (depth - 1);
+        if ((nonEmpty & bit) != 0) put((byte) ',');
+        else nonEmpty |= bit;
+    }
+
+    private void string(String s) {
+        ensure(s.length() + 2);
+        buf[len++] = '"';
+        for (int i = 0, n = s.length(); i < n; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                if (c >= 0x20 && c != '"' && c != '\\') { put((byte) c); continue; }
+                switch (c) {
+                    case '"' -> escaped('"');
+                    case '\\' -> escaped('\\');
+                    case '\b' -> escaped('b');
+                    case '\f' -> escaped('f');
+                    case '\n' -> escaped('n');
+                    case '\r' -> escaped('r');
+                    case '\t' -> escaped('t');
+                    default -> unicode(c);
+                }
+            } else if (c < 0x800) {
+                ensure(2);
+                buf[len++] = (byte) (0xC0 | (c >> 6));
+                buf[len++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                ensure(4);
+                buf[len++] = (byte) (0xF0 | (cp >> 18));
+                buf[len++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                buf[len++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                buf[len++] = (byte) (0x80 | (cp & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                unicode(c); // unpaired: not encodable as UTF-8
+            } else {
+                ensure(3);
+                buf[len++] = (byte) (0xE0 | (c >> 12));
+                buf[len++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buf[len++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        put((byte) '"');
+    }
+
+    private void escaped(char c) {
+        ensure(2);
+        buf[len++] = '\\';
+        buf[len++] = (byte) c;
+    }
+
+    private void unicode(char c) {
+        ensure(6);
+        buf[len++] = '\\';
+        buf[len++] = 'u';
+        buf[len++] = HEX[(c >> 12) & 0xF];
+        buf[len++] = HEX[(c >> 8) & 0xF];
+        buf[len++] = HEX[(c >> 4) & 0xF];
+        buf[len++] = HEX[c & 0xF];
+    }
+
+    private void ascii(String s) {
+        ensure(s.length());
+        for (int i = 0; i < s.length(); i++) buf[len++] = (byte) s.charAt(i);
+    }
+
+    private void put(byte b) {
+        ensure(1);
+        buf[len++] = b;
+    }
+
+    private void ensure(int extra) {
+        if (len + extra > buf.length) buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + extra));
+    }
+}
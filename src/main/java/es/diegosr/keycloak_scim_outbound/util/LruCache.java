@@ -0,0 +1,43 @@
+package es.diegosr.keycloak_scim_outbound.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Small thread-safe map capped at {@code maxSize} entries, evicting the least recently used one.
+ * Unlike {@link ExpiringCache}, entries never expire on their own.
+ */
+public final class LruCache<K, V> {
+    private final LinkedHashMap<K, V> map;
+
+    public LruCache(int maxSize) {
+        final int cap = Math.max(1, maxSize);
+        this.map = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                return size() > cap;
+            }
+        };
+    }
+
+    public synchronized V get(K key) {
+        return map.get(key);
+    }
+
+    public synchronized void put(K key, V value) {
+        map.put(key, value);
+    }
+
+    /** Stores {@code value} unless the key is present; returns the present value, or null if stored. */
+    public synchronized V putIfAbsent(K key, V value) {
+        return map.putIfAbsent(key, value);
+    }
+
+    public synchronized V remove(K key) {
+        return map.remove(key);
+    }
+
+    public synchronized int size() {
+        return map.size();
+    }
+}
@@ -3,80 +3,109 @@ package es.diegosr.keycloak_scim_outbound.util;
 import org.keycloak.models.UserModel;
 
 /**
- * Builds SCIM v2 User payloads from Keycloak's UserModel.
- * Keep all string escaping / normalization here.
+ * Builds SCIM v2 User payloads from Keycloak's UserModel, as UTF-8 JSON ready to send.
+ * All escaping happens in {@link JsonWriter}; payloads are written into the thread's pooled buffer.
  */
 public final class ScimMapper {
+    private static final String USER_SCHEMA = "urn:ietf:params:scim:schemas:core:2.0:User";
+    private static final String PATCH_SCHEMA = "urn:ietf:params:scim:api:messages:2.0:PatchOp";
 
     private ScimMapper() {}
 
     /** Backward-compatible wrapper: uses Keycloak username if no explicit SCIM userName is provided. */
-    public static String buildCreateUser(UserModel user) {
+    public static byte[] buildCreateUser(UserModel user) {
         String fallback = user != null ? user.getUsername() : "";
         return buildCreateUser(user, fallback);
     }
 
     /** Build SCIM User JSON for POST /Users with explicit SCIM userName (strategy-based). */
-    public static String buildCreateUser(UserModel user, String scimUserName) {
-        final String given    = esc(nvl(user != null ? user.getFirstName()  : null));
-        final String family   = esc(nvl(user != null ? user.getLastName()   : null));
-        final String email    = esc(nvl(user != null ? user.getEmail()      : null));
-        final String uname    = esc(nvl(scimUserName));
-        final String active   = (user != null && user.isEnabled()) ? "true" : "false";
-
-        return """
-            {
-              "schemas": ["urn:ietf:params:scim:schemas:core:2.0:User"],
-              "userName": "%s",
-              "name": { "givenName": "%s", "familyName": "%s" },
-              "emails": [ { "value": "%s", "type": "work", "primary": true } ],
-              "active": %s
-            }
-            """.formatted(uname, given, family, email, active);
+    public static byte[] buildCreateUser(UserModel user, String scimUserName) {
+        return buildCreateUser(user != null ? ScimUser.of(user, scimUserName) : new ScimUser(scimUserName, null, null, null, false));
+    }
+
+    /** Build SCIM User JSON for POST /Users from a user snapshot. */
+    public static byte[] buildCreateUser(ScimUser user) {
+        JsonWriter w = JsonWriter.pooled().beginObject();
+        w.name("schemas").beginArray().value(USER_SCHEMA).endArray();
+        w.field("userName", nvl(user.userName()));
+        w.name("name").beginObject()
+                .field("givenName", nvl(user.givenName()))
+                .field("familyName", nvl(user.familyName()))
+                .endObject();
+        w.name("emails").beginArray().beginObject()
+                .field("value", nvl(user.email()))
+                .field("type", "work")
+                .field("primary", true)
+                .endObject().endArray();
+        w.field("active", user.active());
+        return w.endObject().toByteArray();
+    }
+
+    /** Build SCIM User JSON for PUT /Users/{id} (full replace, for targets without PATCH). */
+    public static byte[] buildReplaceUser(ScimUser user) {
+        return buildCreateUser(user);
     }
 
     /** Build SCIM PatchOp JSON for PATCH /Users/{id}. */
-    public static String buildPatchUser(UserModel user) {
-        final String given  = esc(nvl(user != null ? user.getFirstName() : null));
-        final String family = esc(nvl(user != null ? user.getLastName()  : null));
-        final String email  = esc(nvl(user != null ? user.getEmail()     : null));
-        final String active = (user != null && user.isEnabled()) ? "true" : "false";
-
-        return """
-            {
-              "schemas": ["urn:ietf:params:scim:api:messages:2.0:PatchOp"],
-              "Operations": [
-                {"op":"replace","path":"name.givenName","value":"%s"},
-                {"op":"replace","path":"name.familyName","value":"%s"},
-                {"op":"replace","path":"emails[primary eq true].value","value":"%s"},
-                {"op":"replace","path":"active","value":%s}
-              ]
-            }
-            """.formatted(given, family, email, active);
+    public static byte[] buildPatchUser(UserModel user) {
+        return buildPatchUser(user != null ? ScimUser.of(user, user.getUsername()) : new ScimUser(null, null, null, null, false));
+    }
+
+    /** Build SCIM PatchOp JSON for PATCH /Users/{id} from a user snapshot. */
+    public static byte[] buildPatchUser(ScimUser user) {
+        JsonWriter w = beginPatch();
+        replace(w, "name.givenName").value(nvl(user.givenName())).endObject();
+        replace(w, "name.familyName").value(nvl(user.familyName())).endObject();
+        replace(w, "emails[primary eq true].value").value(nvl(user.email())).endObject();
+        replace(w, "active").value(user.active()).endObject();
+        return endPatch(w);
+    }
+
+    /**
+     * Build a SCIM PatchOp with only the fields that differ between {@code before} (what the
+     * target was last sent) and {@code after}; null if none of the pushed fields changed.
+     */
+    public static byte[] buildPatchUser(ScimUser before, ScimUser after) {
+        boolean given = !nvl(before.givenName()).equals(nvl(after.givenName()));
+        boolean family = !nvl(before.familyName()).equals(nvl(after.familyName()));
+        boolean email = !nvl(before.email()).equals(nvl(after.email()));
+        boolean active = before.active() != after.active();
+        if (!given && !family && !email && !active) return null;
+
+        JsonWriter w = beginPatch();
+        if (given) replace(w, "name.givenName").value(nvl(after.givenName())).endObject();
+        if (family) replace(w, "name.familyName").value(nvl(after.familyName())).endObject();
+        if (email) replace(w, "emails[primary eq true].value").value(nvl(after.email())).endObject();
+        if (active) replace(w, "active").value(after.active()).endObject();
+        return endPatch(w);
     }
 
     /** Patch to deactivate (active=false). */
-    public static String buildDeactivatePatch() {
-        return """
-            {
-              "schemas": ["urn:ietf:params:scim:api:messages:2.0:PatchOp"],
-              "Operations": [
-                {"op":"replace","path":"active","value":false}
-              ]
-            }
-            """;
+    public static byte[] buildDeactivatePatch() {
+        JsonWriter w = beginPatch();
+        replace(w, "active").value(false).endObject();
+        return endPatch(w);
     }
 
     /* ===== helpers ===== */
 
-    /** Minimal JSON escape for string values. */
-    public static String esc(String s) {
-        if (s == null) return "";
-        return s.replace("\\", "\\\\").replace("\"", "\\\"");
+    private static JsonWriter beginPatch() {
+        JsonWriter w = JsonWriter.pooled().beginObject();
+        w.name("schemas").beginArray().value(PATCH_SCHEMA).endArray();
+        return w.name("Operations").beginArray();
+    }
+
+    /** Opens a replace operation; the caller writes the value and closes the object. */
+    private static JsonWriter replace(JsonWriter w, String path) {
+        return w.beginObject().field("op", "replace").field("path", path).name("value");
+    }
+
+    private static byte[] endPatch(JsonWriter w) {
+        return w.endArray().endObject().toByteArray();
     }
 
     /** Null-to-empty helper. */
     public static String nvl(String s) {
         return (s == null) ? "" : s;
     }
-}
\ No newline at end of file
+}
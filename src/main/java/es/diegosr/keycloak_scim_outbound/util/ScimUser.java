@@ -0,0 +1,22 @@
+package es.diegosr.keycloak_scim_outbound.util;
+
+import org.keycloak.models.UserModel;
+
+/**
+ * Immutable snapshot of the user fields we push to SCIM targets.
+ * Taken on the Keycloak request thread, so it can be handed to background
+ * workers without touching the (session-bound) UserModel again.
+ */
+public record ScimUser(String userName, String givenName, String familyName, String email, boolean active) {
+
+    /** Snapshot of {@code user}; returns null when the user model is gone (e.g. deletes). */
+    public static ScimUser of(UserModel user, String scimUserName) {
+        if (user == null) return null;
+        return new ScimUser(scimUserName, user.getFirstName(), user.getLastName(), user.getEmail(), user.isEnabled());
+    }
+
+    /** Same user with active=false (deactivation through a full PUT). */
+    public ScimUser deactivated() {
+        return new ScimUser(userName, givenName, familyName, email, false);
+    }
+}
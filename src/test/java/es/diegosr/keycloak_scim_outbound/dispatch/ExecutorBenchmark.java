@@ -0,0 +1,74 @@
+package es.diegosr.keycloak_scim_outbound.dispatch;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Platform worker pool vs. virtual-thread-per-job executor (the {@code virtualThreads} option)
+ * for jobs that block on a slow target, as the blocking {@code ScimClient} methods do.
+ * Each operation runs {@code jobs} jobs that each block for {@code latencyMillis}.
+ *
+ * Run with {@code mvn -Pbench test-compile exec:exec -Djmh.args="ExecutorBenchmark"};
+ * the virtual mode needs a Java 21+ runtime.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ExecutorBenchmark {
+    @Param({"platform", "virtual"})
+    public String mode;
+
+    @Param({"16"})
+    public int workers;
+
+    @Param({"500"})
+    public int jobs;
+
+    @Param({"10"})
+    public int latencyMillis;
+
+    private ExecutorService pool;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        if ("virtual".equals(mode)) {
+            if (Runtime.version().feature() < 21) throw new IllegalStateException("virtual threads need Java 21+");
+            pool = ScimDispatcher.virtualOrPlatformPool(workers, jobs);
+        } else {
+            pool = ScimDispatcher.platformPool(workers, jobs);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        pool.shutdownNow();
+    }
+
+    @Benchmark
+    public void blockingJobs() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(jobs);
+        for (int i = 0; i < jobs; i++) {
+            pool.execute(() -> {
+                try {
+                    Thread.sleep(latencyMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                done.countDown();
+            });
+        }
+        done.await();
+    }
+}
@@ -0,0 +1,142 @@
+package es.diegosr.keycloak_scim_outbound.dispatch;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class KeyedLanesTest {
+    private final ExecutorService pool = Executors.newFixedThreadPool(4);
+
+    @AfterEach
+    void shutdown() {
+        pool.shutdownNow();
+    }
+
+    @Test
+    void sameKeyRunsInSubmissionOrderAndNeverConcurrently() throws Exception {
+        List<String> log = Collections.synchronizedList(new ArrayList<>());
+        Map<String, CompletableFuture<Void>> running = new ConcurrentHashMap<>();
+        CountDownLatch done = new CountDownLatch(3);
+        KeyedLanes lanes = lanes(8, key -> {
+            log.add("start " + key);
+            CompletableFuture<Void> f = new CompletableFuture<>();
+            assertNull(running.put("u", f), "previous task of the lane still running");
+            // Hand the lane the dependent stage, so the bookkeeping is done before the next task starts.
+            return f.whenComplete((r, e) -> { running.remove("u"); log.add("end " + key); done.countDown(); });
+        });
+
+        // Three tasks of the same key: each completes only when the test says so.
+        lanes.execute("t", "u");
+        lanes.execute("t", "u");
+        lanes.execute("t", "u");
+        for (int i = 0; i < 3; i++) {
+            CompletableFuture<Void> f = awaitRunning(running);
+            Thread.sleep(20); // the next task must not start meanwhile
+            assertEquals(1, running.size());
+            f.complete(null);
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(List.of("start u", "end u", "start u", "end u", "start u", "end u"), log);
+    }
+
+    @Test
+    void differentLanesRunInParallel() throws Exception {
+        CountDownLatch bothStarted = new CountDownLatch(2);
+        CompletableFuture<Void> release = new CompletableFuture<>();
+        KeyedLanes lanes = lanes(64, key -> {
+            bothStarted.countDown();
+            return release;
+        });
+        String a = "a", b = "b";
+        assertNotEquals(lanes.laneOf(a), lanes.laneOf(b));
+
+        lanes.execute("t", a);
+        lanes.execute("t", b);
+        assertTrue(bothStarted.await(5, TimeUnit.SECONDS), "second lane waited for the first");
+        release.complete(null);
+    }
+
+    @Test
+    void stuckPartitionDoesNotHoldOthers() throws Exception {
+        CompletableFuture<Void> stuck = new CompletableFuture<>();
+        CountDownLatch healthyRan = new CountDownLatch(1);
+        KeyedLanes lanes = lanes(1, key -> {
+            if (key.startsWith("slow")) return stuck;
+            healthyRan.countDown();
+            return CompletableFuture.completedFuture(null);
+        });
+        lanes.execute("slow-target", "slow-1");
+        lanes.execute("slow-target", "slow-2");
+        lanes.execute("healthy-target", "ok-1"); // same lane index: only one lane per partition
+        assertTrue(healthyRan.await(5, TimeUnit.SECONDS), "healthy target waited behind the slow one");
+        assertEquals(1, lanes.waiting());
+        stuck.complete(null);
+    }
+
+    @Test
+    void failingTaskDoesNotStallItsLane() throws Exception {
+        CountDownLatch second = new CountDownLatch(1);
+        KeyedLanes lanes = lanes(1, key -> {
+            if (key.equals("boom")) throw new IllegalStateException("boom");
+            second.countDown();
+            return CompletableFuture.completedFuture(null);
+        });
+        lanes.execute("t", "boom");
+        lanes.execute("t", "next");
+        assertTrue(second.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void keysLeftWhenTheExecutorRefusesGoToRejected() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        Executor firstOnly = r -> {
+            if (calls.incrementAndGet() > 1) throw new RejectedExecutionException("full");
+            pool.execute(r);
+        };
+        CompletableFuture<Void> release = new CompletableFuture<>();
+        CountDownLatch started = new CountDownLatch(1);
+        List<String> rejected = Collections.synchronizedList(new ArrayList<>());
+        KeyedLanes lanes = new KeyedLanes(1, firstOnly, key -> {
+            started.countDown();
+            return release;
+        }, (key, e) -> rejected.add(key));
+
+        lanes.execute("t", "a");
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        lanes.execute("t", "b");
+        lanes.execute("t", "c");
+        release.complete(null); // the lane's next step is refused: b and c must not just vanish
+        for (int i = 0; i < 500 && rejected.size() < 2; i++) Thread.sleep(10);
+        assertEquals(List.of("b", "c"), rejected);
+        assertEquals(0, lanes.waiting());
+    }
+
+    private KeyedLanes lanes(int lanesPerPartition, Function<String, CompletableFuture<Void>> task) {
+        return new KeyedLanes(lanesPerPartition, pool, task, (key, e) -> fail("rejected " + key));
+    }
+
+    private static CompletableFuture<Void> awaitRunning(Map<String, CompletableFuture<Void>> running) throws InterruptedException {
+        for (int i = 0; i < 500; i++) {
+            CompletableFuture<Void> f = running.get("u");
+            if (f != null) return f;
+            Thread.sleep(10);
+        }
+        throw new AssertionError("task never started");
+    }
+}
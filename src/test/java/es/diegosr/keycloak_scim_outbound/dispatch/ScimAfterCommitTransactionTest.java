@@ -0,0 +1,33 @@
+package es.diegosr.keycloak_scim_outbound.dispatch;
+
+import es.diegosr.keycloak_scim_outbound.util.ExpiringCache;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ScimAfterCommitTransactionTest {
+
+    private final ExpiringCache<String, Boolean> debounce = new ExpiringCache<>(10, Duration.ofMinutes(1));
+
+    @Test
+    void debounceKeysAreRecordedOnCommit() {
+        ScimAfterCommitTransaction tx = new ScimAfterCommitTransaction(null, debounce);
+        tx.begin();
+        assertTrue(tx.debounce("k"));
+        assertFalse(tx.debounce("k"), "the same key twice in one transaction is debounced");
+        assertNull(debounce.get("k"), "nothing is recorded before commit");
+        tx.commit();
+        assertEquals(Boolean.TRUE, debounce.get("k"));
+    }
+
+    @Test
+    void rollbackDoesNotRecordDebounceKeys() {
+        ScimAfterCommitTransaction tx = new ScimAfterCommitTransaction(null, debounce);
+        tx.begin();
+        tx.debounce("k");
+        tx.rollback();
+        assertNull(debounce.get("k"));
+    }
+}
@@ -0,0 +1,214 @@
+package es.diegosr.keycloak_scim_outbound.dispatch;
+
+import es.diegosr.keycloak_scim_outbound.http.ScimClientRegistry;
+import es.diegosr.keycloak_scim_outbound.http.ScimEndpoint;
+import es.diegosr.keycloak_scim_outbound.outbox.DiskJournal;
+import es.diegosr.keycloak_scim_outbound.outbox.JobJournal;
+import es.diegosr.keycloak_scim_outbound.util.Json;
+import es.diegosr.keycloak_scim_outbound.util.ScimUser;
+
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static es.diegosr.keycloak_scim_outbound.dispatch.ScimJob.Action.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+class ScimDispatcherTest {
+    private static final ScimEndpoint ENDPOINT = new ScimEndpoint("https://scim.example.com/v2", "t", 4);
+
+    private final List<HttpServer> servers = new ArrayList<>();
+
+    @AfterEach
+    void stopServers() {
+        servers.forEach(s -> s.stop(0));
+    }
+
+    static ScimJob job(ScimJob.Action action, String userId, String scimId, ScimUser user) {
+        return job(ENDPOINT, action, userId, scimId, user);
+    }
+
+    static ScimJob job(ScimEndpoint endpoint, ScimJob.Action action, String userId, String scimId, ScimUser user) {
+        return job(endpoint, "target", action, userId, scimId, user);
+    }
+
+    static ScimJob job(ScimEndpoint endpoint, String targetId, ScimJob.Action action, String userId, String scimId, ScimUser user) {
+        return new ScimJob(action, action.name(), "realm", "Realm", targetId, targetId, endpoint,
+                userId, user != null ? user.userName() : "gone", scimId, user);
+    }
+
+    static ScimUser user(String email) {
+        return new ScimUser("alice", "Alice", "Liddell", email, true);
+    }
+
+    @Test
+    void keyIsRealmTargetAndUser() {
+        assertEquals("realm:target:u1", ScimDispatcher.coalescingKey(job(UPDATE, "u1", null, user("a@x"))));
+    }
+
+    @Test
+    void updateAfterCreateKeepsCreateWithNewestSnapshot() {
+        ScimJob merged = ScimDispatcher.coalesce(job(CREATE, "u1", "id-1", user("old@x")), job(UPDATE, "u1", null, user("new@x")));
+        assertEquals(CREATE, merged.action());
+        assertEquals("CREATE", merged.origin());
+        assertEquals("new@x", merged.user().email());
+        assertEquals("id-1", merged.scimId(), "known SCIM id is kept");
+    }
+
+    @Test
+    void newestUpdateWins() {
+        ScimJob next = job(UPDATE, "u1", null, user("new@x"));
+        assertSame(next, ScimDispatcher.coalesce(job(UPDATE, "u1", null, user("old@x")), next));
+    }
+
+    @Test
+    void deleteSupersedesQueuedUpsert() {
+        ScimJob delete = job(DELETE, "u1", null, null);
+        assertSame(delete, ScimDispatcher.coalesce(job(CREATE, "u1", null, user("a@x")), delete));
+        assertSame(delete, ScimDispatcher.coalesce(job(UPDATE, "u1", null, user("a@x")), delete));
+    }
+
+    @Test
+    void upsertAfterQueuedDeleteReprovisions() {
+        ScimJob update = job(UPDATE, "u1", null, user("a@x"));
+        assertSame(update, ScimDispatcher.coalesce(job(DELETE, "u1", null, null), update));
+    }
+
+    @Test
+    void restartsWithNothingToReplayLeaveNoSegmentsBehind(@TempDir Path dir) throws Exception {
+        for (int run = 0; run < 3; run++) {
+            DiskJournal journal = new DiskJournal(dir);
+            try (ScimDispatcher dispatcher = new ScimDispatcher(1, 1, 10, 10, false, false, journal, null, null, new ScimClientRegistry())) {
+                dispatcher.replay();
+                // A job that ran to completion: its segment is the active one when the node stops.
+                long seq = journal.append("k", job(UPDATE, "u1", null, user("a@x")));
+                journal.ack("k", seq);
+                journal.flushed().get();
+            }
+        }
+        try (Stream<Path> files = Files.list(dir)) {
+            assertTrue(files.count() <= 1, "only the last run's segment may remain");
+        }
+    }
+
+    @Test
+    void bulkBatchTakesWaitingJobsFromEveryLane() throws Exception {
+        CountDownLatch allQueued = new CountDownLatch(1);
+        List<Integer> bulkSizes = Collections.synchronizedList(new ArrayList<>());
+        List<String> singles = Collections.synchronizedList(new ArrayList<>());
+        ScimEndpoint endpoint = target(allQueued, bulkSizes, singles);
+
+        int users = 20;
+        List<CompletableFuture<Void>> done = new ArrayList<>();
+        try (ScimDispatcher dispatcher = new ScimDispatcher(2, 64, 100, 100, false, false, JobJournal.NONE, null, null, new ScimClientRegistry())) {
+            for (int i = 0; i < users; i++) {
+                done.add(dispatcher.submitTracked(job(endpoint, UPDATE, "u" + i, "id-" + i, user("u" + i + "@x"))));
+            }
+            allQueued.countDown(); // the capabilities probe answers only now: every job is waiting
+            CompletableFuture.allOf(done.toArray(new CompletableFuture<?>[0])).get(10, TimeUnit.SECONDS);
+        }
+        assertEquals(List.of(), singles, "jobs of other lanes were sent one by one");
+        assertEquals(users, bulkSizes.stream().mapToInt(Integer::intValue).sum());
+        assertTrue(bulkSizes.size() <= 2, "one batch per busy worker at most, got " + bulkSizes);
+    }
+
+    @Test
+    void slowCapabilityProbeDoesNotHoldTheWorker() throws Exception {
+        CountDownLatch probe = new CountDownLatch(1);
+        ScimEndpoint stuck = target(probe, new ArrayList<>(), new ArrayList<>());
+        List<String> singles = Collections.synchronizedList(new ArrayList<>());
+        ScimEndpoint healthy = target(new CountDownLatch(0), new ArrayList<>(), singles);
+
+        try (ScimDispatcher dispatcher = new ScimDispatcher(1, 4, 100, 100, false, false, JobJournal.NONE, null, null, new ScimClientRegistry())) {
+            dispatcher.submit(job(stuck, "stuck", UPDATE, "u1", "id-1", user("a@x")));
+            dispatcher.submitTracked(job(healthy, "healthy", UPDATE, "u2", "id-2", user("b@x"))).get(5, TimeUnit.SECONDS);
+            assertEquals(List.of("PATCH /scim/v2/Users/id-2"), singles);
+            probe.countDown(); // let the stuck job finish before close() waits for it
+        } finally {
+            probe.countDown();
+        }
+    }
+
+    @Test
+    void stuckTargetDoesNotTakeTheSlotsOfAnother() throws Exception {
+        CountDownLatch writes = new CountDownLatch(1);
+        ScimEndpoint stuck = target(OPEN, writes, new ArrayList<>(), new ArrayList<>());
+        List<String> singles = Collections.synchronizedList(new ArrayList<>());
+        ScimEndpoint healthy = target(OPEN, OPEN, new ArrayList<>(), singles);
+
+        // One worker, one slot per target: the stuck target's first job holds its only slot.
+        try (ScimDispatcher dispatcher = new ScimDispatcher(1, 4, 100, 1, false, false, JobJournal.NONE, null, null, new ScimClientRegistry())) {
+            dispatcher.submit(job(stuck, "stuck", UPDATE, "u1", "id-1", user("a@x")));
+            dispatcher.submit(job(stuck, "stuck", DELETE, "u2", "id-2", null));
+            dispatcher.submitTracked(job(healthy, "healthy", UPDATE, "u3", "id-3", user("c@x"))).get(5, TimeUnit.SECONDS);
+            assertEquals(List.of("PATCH /scim/v2/Users/id-3"), singles);
+            writes.countDown();
+        } finally {
+            writes.countDown();
+        }
+    }
+
+    private static final CountDownLatch OPEN = new CountDownLatch(0);
+
+    private ScimEndpoint target(CountDownLatch probe, List<Integer> bulkSizes, List<String> singles) throws Exception {
+        return target(probe, OPEN, bulkSizes, singles);
+    }
+
+    /**
+     * A local target advertising bulk; it answers the capabilities probe once {@code probe} opens,
+     * and writes once {@code writes} does.
+     */
+    private ScimEndpoint target(CountDownLatch probe, CountDownLatch writes, List<Integer> bulkSizes, List<String> singles) throws Exception {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        servers.add(server);
+        server.setExecutor(Executors.newCachedThreadPool()); // the probe blocks: other requests must not wait behind it
+        server.createContext("/", exchange -> {
+            String path = exchange.getRequestURI().getPath();
+            String body = "{}";
+            try {
+                if (path.endsWith("/ServiceProviderConfig")) {
+                    probe.await(10, TimeUnit.SECONDS);
+                    body = "{\"patch\":{\"supported\":true},\"bulk\":{\"supported\":true,\"maxOperations\":100,\"maxPayloadSize\":1048576}}";
+                } else if (path.endsWith("/Bulk")) {
+                    writes.await(10, TimeUnit.SECONDS);
+                    Object req = Json.parse(new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8));
+                    StringBuilder ops = new StringBuilder();
+                    for (Object op : Json.list(Json.get(req, "Operations"))) {
+                        if (ops.length() > 0) ops.append(',');
+                        ops.append("{\"bulkId\":\"").append(Json.str(Json.get(op, "bulkId"))).append("\",\"status\":200}");
+                    }
+                    bulkSizes.add(Json.list(Json.get(req, "Operations")).size());
+                    body = "{\"Operations\":[" + ops + "]}";
+                } else {
+                    singles.add(exchange.getRequestMethod() + " " + path);
+                    writes.await(10, TimeUnit.SECONDS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        });
+        server.start();
+        return new ScimEndpoint("http://127.0.0.1:" + server.getAddress().getPort() + "/scim/v2", "t", 4);
+    }
+}
@@ -0,0 +1,124 @@
+package es.diegosr.keycloak_scim_outbound.http;
+
+import es.diegosr.keycloak_scim_outbound.util.Json;
+
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ScimClientTest {
+    private HttpServer server;
+
+    @AfterEach
+    void stopServer() {
+        if (server != null) server.stop(0);
+    }
+
+    private static ScimClient.BulkOperation op(int i, String data) {
+        return new ScimClient.BulkOperation("op-" + i, "PATCH", "/Users/" + i,
+                data != null ? data.getBytes(StandardCharsets.UTF_8) : null);
+    }
+
+    private static List<ScimClient.BulkOperation> ops(int n, String data) {
+        List<ScimClient.BulkOperation> ops = new ArrayList<>();
+        for (int i = 0; i < n; i++) ops.add(op(i, data));
+        return ops;
+    }
+
+    @Test
+    void splitsByMaxOperations() {
+        List<List<byte[]>> chunks = ScimClient.chunkBulk(ops(7, "{}"), 3, 0);
+        assertEquals(List.of(3, 3, 1), chunks.stream().map(List::size).toList());
+    }
+
+    @Test
+    void splitsByPayloadSize() {
+        String data = "{\"v\":\"" + "x".repeat(200) + "\"}";
+        List<List<byte[]>> chunks = ScimClient.chunkBulk(ops(10, data), 100, 1000);
+        assertTrue(chunks.size() > 1);
+        for (List<byte[]> chunk : chunks) {
+            int bytes = 96 + chunk.stream().mapToInt(b -> b.length + 1).sum();
+            assertTrue(bytes <= 1000, "chunk of " + bytes + " bytes");
+        }
+        assertEquals(10, chunks.stream().mapToInt(List::size).sum());
+    }
+
+    @Test
+    void oversizedOperationStillGoesAlone() {
+        String big = "{\"v\":\"" + "x".repeat(2000) + "\"}";
+        List<ScimClient.BulkOperation> ops = List.of(op(0, "{}"), op(1, big), op(2, "{}"));
+        List<List<byte[]>> chunks = ScimClient.chunkBulk(ops, 100, 1000);
+        assertEquals(List.of(1, 1, 1), chunks.stream().map(List::size).toList());
+    }
+
+    @Test
+    void operationsAreValidJsonWithData() {
+        byte[] json = ScimClient.chunkBulk(List.of(op(0, "{\"a\":1}"), op(1, null)), 10, 0).get(0).get(0);
+        Object parsed = Json.parse(new String(json, StandardCharsets.UTF_8));
+        assertEquals("PATCH", Json.str(Json.get(parsed, "method")));
+        assertEquals("op-0", Json.str(Json.get(parsed, "bulkId")));
+        assertEquals("/Users/0", Json.str(Json.get(parsed, "path")));
+        assertEquals(1L, ((Map<?, ?>) Json.get(parsed, "data")).get("a"));
+
+        byte[] noData = ScimClient.chunkBulk(List.of(op(1, null)), 10, 0).get(0).get(0);
+        assertNull(Json.get(Json.parse(new String(noData, StandardCharsets.UTF_8)), "data"));
+    }
+
+    @Test
+    void projectionStaysOnWhenThePlainLookupFailsToo() throws IOException {
+        List<String> queries = Collections.synchronizedList(new ArrayList<>());
+        ScimClient client = clientFor(queries, query -> 400);
+
+        assertThrows(CompletionException.class, () -> client.findUserIdByUserNameAsync("alice").join());
+        assertThrows(CompletionException.class, () -> client.findUserIdByUserNameAsync("bob").join());
+        assertEquals(List.of(true, false, true, false), queries.stream().map(q -> q.contains("attributes=id")).toList());
+    }
+
+    @Test
+    void projectionIsDroppedOnceThePlainLookupSucceeds() throws IOException {
+        List<String> queries = Collections.synchronizedList(new ArrayList<>());
+        ScimClient client = clientFor(queries, query -> query.contains("attributes=") ? 400 : 200);
+
+        assertEquals(Optional.of("id-1"), client.findUserIdByUserNameAsync("alice").join());
+        assertEquals(Optional.of("id-1"), client.findUserIdByUserNameAsync("bob").join());
+        assertEquals(List.of(true, false, false), queries.stream().map(q -> q.contains("attributes=id")).toList());
+    }
+
+    /** Client for a local target answering /Users lookups with {@code status} (and one user on 200). */
+    private ScimClient clientFor(List<String> queries, Function<String, Integer> status) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            String path = exchange.getRequestURI().getPath();
+            String query = exchange.getRequestURI().getRawQuery();
+            int code = 200;
+            String body = "{}";
+            if (path.endsWith("/Users")) {
+                queries.add(query);
+                code = status.apply(query);
+                body = code == 200 ? "{\"totalResults\":1,\"Resources\":[{\"id\":\"id-1\"}]}" : "{\"status\":\"400\"}";
+            }
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(code, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        });
+        server.start();
+        return new ScimClient("http://127.0.0.1:" + server.getAddress().getPort() + "/scim/v2", "token");
+    }
+}
@@ -0,0 +1,182 @@
+package es.diegosr.keycloak_scim_outbound.outbox;
+
+import es.diegosr.keycloak_scim_outbound.dispatch.ScimJob;
+import es.diegosr.keycloak_scim_outbound.util.ScimUser;
+
+import jakarta.persistence.PessimisticLockException;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.UnaryOperator;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DbOutboxTest {
+    private static final long LEASE = 60_000;
+    private static final long T0 = 1_000_000;
+
+    private static H2Database db;
+    private final DbOutbox node1 = new DbOutbox(null, LEASE);
+    private final DbOutbox node2 = new DbOutbox(null, LEASE);
+
+    @BeforeAll
+    static void open() {
+        db = new H2Database();
+    }
+
+    @AfterAll
+    static void closeDb() {
+        db.close();
+    }
+
+    @AfterEach
+    void close() {
+        node1.close();
+        node2.close();
+        db.clear();
+    }
+
+    private static ScimJob job(String userId, String email) {
+        return new ScimJob(ScimJob.Action.UPDATE, "UPDATE", "realm", "Realm", "target", "Target", null,
+                userId, userId, null, new ScimUser(userId, "Given", "Family", email, true));
+    }
+
+    private String insert(String userId, String email, long createdAt) {
+        ScimOutboxEntity row = new ScimOutboxEntity();
+        row.setId(userId + "-" + createdAt);
+        row.setCreatedAt(createdAt);
+        row.setCoalescingKey("realm:target:" + userId);
+        row.setPayload(Base64.getEncoder().encodeToString(JobCodec.toBytes(job(userId, email))));
+        db.sessions.inTransaction(s -> s.persist(row));
+        return row.getId();
+    }
+
+    private List<DbOutbox.Claimed> claim(DbOutbox node, long now) {
+        return claim(node, now, UnaryOperator.identity());
+    }
+
+    private List<DbOutbox.Claimed> claim(DbOutbox node, long now, UnaryOperator<ScimJob> current) {
+        List<DbOutbox.Claimed> claimed = new ArrayList<>();
+        db.sessions.inTransaction(s -> node.claim(s, current, now, claimed));
+        return claimed;
+    }
+
+    private static List<String> ids(List<DbOutbox.Claimed> claimed) {
+        return claimed.stream().map(DbOutbox.Claimed::rowId).toList();
+    }
+
+    @Test
+    void claimTakesEveryRowOfAUserInOrderAndLeasesThem() {
+        String a1 = insert("a", "a1@x", 1), a2 = insert("a", "a2@x", 2), b1 = insert("b", "b1@x", 3);
+
+        List<DbOutbox.Claimed> claimed = claim(node1, T0);
+        assertEquals(List.of(a1, a2, b1), ids(claimed));
+        assertEquals("a2@x", claimed.get(1).job().user().email());
+
+        ScimOutboxEntity row = db.sessions.fromTransaction(s -> s.find(ScimOutboxEntity.class, a1));
+        assertEquals(T0 + LEASE, row.getClaimedUntil());
+        assertNotNull(row.getClaimedBy());
+    }
+
+    @Test
+    void leasedUserIsSkippedByOtherNodes() {
+        insert("a", "a1@x", 1);
+        claim(node1, T0);
+        insert("a", "a2@x", 2); // newer job of a user node1 is still working on
+        String b1 = insert("b", "b1@x", 3);
+
+        assertEquals(List.of(b1), ids(claim(node2, T0 + 1)), "a stays with node1 until its lease ends");
+        assertTrue(claim(node1, T0 + 2).isEmpty(), "a leased user is not claimed again, not even by its holder");
+    }
+
+    @Test
+    void expiredLeaseIsClaimedAgain() {
+        String a1 = insert("a", "a1@x", 1);
+        claim(node1, T0);
+
+        assertTrue(claim(node2, T0 + LEASE - 1).isEmpty());
+        assertEquals(List.of(a1), ids(claim(node2, T0 + LEASE + 1)), "node1 stopped renewing: another node takes over");
+    }
+
+    @Test
+    void renewedLeaseOutlivesTheFirstOne() {
+        String a1 = insert("a", "a1@x", 1);
+        claim(node1, T0);
+
+        int renewed = db.sessions.fromTransaction(s -> node1.renew(s, List.of(a1), T0 + LEASE / 2));
+        assertEquals(1, renewed);
+        assertTrue(claim(node2, T0 + LEASE + 1).isEmpty(), "a job parked past the first lease is not pushed twice");
+    }
+
+    @Test
+    void renewAndDeleteOnlyTouchRowsStillLeasedToThisNode() {
+        String a1 = insert("a", "a1@x", 1);
+        claim(node1, T0);
+        claim(node2, T0 + LEASE + 1); // node1 lost it
+
+        assertEquals(0, (int) db.sessions.fromTransaction(s -> node1.renew(s, List.of(a1), T0 + LEASE + 2)));
+        assertEquals(0, (int) db.sessions.fromTransaction(s -> node1.delete(s, List.of(a1))));
+        assertNotNull(db.sessions.fromTransaction(s -> s.find(ScimOutboxEntity.class, a1)), "node2's row survives");
+
+        assertEquals(1, (int) db.sessions.fromTransaction(s -> node2.delete(s, List.of(a1))));
+        assertNull(db.sessions.fromTransaction(s -> s.find(ScimOutboxEntity.class, a1)));
+    }
+
+    @Test
+    void rowsOfARemovedTargetAreDropped() {
+        String a1 = insert("a", "a1@x", 1);
+
+        assertTrue(claim(node1, T0, job -> null).isEmpty());
+        assertNull(db.sessions.fromTransaction(s -> s.find(ScimOutboxEntity.class, a1)));
+    }
+
+    @Test
+    void concurrentClaimsNeverShareARow() throws Exception {
+        insert("a", "a1@x", 1);
+        insert("b", "b1@x", 2);
+
+        // node1's claim keeps its transaction (and row locks) open while node2 claims.
+        CountDownLatch claimedByNode1 = new CountDownLatch(1);
+        CountDownLatch commit = new CountDownLatch(1);
+        List<DbOutbox.Claimed> first = new ArrayList<>();
+        CompletableFuture<Void> holder = CompletableFuture.runAsync(() -> db.sessions.inTransaction(s -> {
+            node1.claim(s, UnaryOperator.identity(), T0, first);
+            claimedByNode1.countDown();
+            await(commit);
+        }));
+        assertTrue(claimedByNode1.await(5, TimeUnit.SECONDS));
+
+        CompletableFuture<List<DbOutbox.Claimed>> second = CompletableFuture.supplyAsync(() -> claim(node2, T0 + 1));
+        Thread.sleep(200);
+        commit.countDown();
+        holder.get(5, TimeUnit.SECONDS);
+
+        List<String> taken;
+        try {
+            taken = ids(second.get(10, TimeUnit.SECONDS)); // SKIP LOCKED databases skip node1's rows
+        } catch (ExecutionException e) {
+            assertInstanceOf(PessimisticLockException.class, e.getCause()); // H2 has no SKIP LOCKED: the claim waits and may time out
+            taken = List.of();
+        }
+        assertEquals(2, first.size());
+        for (String id : ids(first)) assertFalse(taken.contains(id), id + " claimed by both nodes");
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
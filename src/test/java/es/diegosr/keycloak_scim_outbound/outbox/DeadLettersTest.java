@@ -0,0 +1,140 @@
+package es.diegosr.keycloak_scim_outbound.outbox;
+
+import es.diegosr.keycloak_scim_outbound.dispatch.ScimJob;
+import es.diegosr.keycloak_scim_outbound.http.ScimException;
+import es.diegosr.keycloak_scim_outbound.util.ScimUser;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DeadLettersTest {
+    private static H2Database db;
+
+    @BeforeAll
+    static void open() {
+        db = new H2Database();
+    }
+
+    @AfterAll
+    static void close() {
+        db.close();
+    }
+
+    @AfterEach
+    void clear() {
+        db.clear();
+    }
+
+    private static ScimJob job(String userId) {
+        return new ScimJob(ScimJob.Action.UPDATE, "UPDATE", "realm", "Realm", "target", "Target", null,
+                userId, userId, null, new ScimUser(userId, "Given", "Family", userId + "@x", true));
+    }
+
+    private String store(String userId, long failedAt) {
+        ScimDeadLetterEntity d = DeadLetters.entity(job(userId), new ScimException("HTTP 400", 400, "{\"detail\":\"bad\"}"));
+        d.setFailedAt(failedAt);
+        db.sessions.inTransaction(s -> s.persist(d));
+        return d.getId();
+    }
+
+    private int takePage(long before, long now, Predicate<ScimJob> moveToOutbox, List<DeadLetters.Taken> tracked) {
+        return takePage(before, now, UnaryOperator.identity(), moveToOutbox, tracked);
+    }
+
+    private int takePage(long before, long now, UnaryOperator<ScimJob> current, Predicate<ScimJob> moveToOutbox,
+                         List<DeadLetters.Taken> tracked) {
+        return db.sessions.fromTransaction(s ->
+                DeadLetters.takePage(s, current, moveToOutbox, "realm", "target", before, now, 10, tracked));
+    }
+
+    private ScimDeadLetterEntity row(String id) {
+        return db.sessions.fromTransaction(s -> s.find(ScimDeadLetterEntity.class, id));
+    }
+
+    @Test
+    void replayedRowsStayMarkedUntilTheirJobHasRun() {
+        String a = store("a", 1), b = store("b", 2);
+        String later = store("c", 200); // failed after the replay started: not part of it
+
+        List<DeadLetters.Taken> tracked = new ArrayList<>();
+        assertEquals(2, takePage(100, 100, job -> false, tracked));
+        assertEquals(List.of(a, b), tracked.stream().map(DeadLetters.Taken::rowId).toList());
+        assertEquals("a", tracked.get(0).job().userId());
+        assertEquals(100, row(a).getReplayedAt(), "kept, only marked, while the job runs");
+        assertEquals(0, row(later).getReplayedAt());
+
+        assertEquals(0, takePage(100, 101, job -> false, new ArrayList<>()), "the next page does not take them again");
+
+        int deleted = db.sessions.fromTransaction(s -> DeadLetters.deleteIds(s, List.of(a)));
+        assertEquals(1, deleted);
+        assertNull(row(a));
+        assertNotNull(row(b));
+    }
+
+    @Test
+    void aLaterReplayLeavesRowsWhoseJobMayStillBeQueued() {
+        String a = store("a", 1);
+        takePage(100, 100, job -> false, new ArrayList<>()); // its job is still waiting in the dispatcher
+
+        assertEquals(0, takePage(500, 500, job -> false, new ArrayList<>()));
+        assertEquals(100, row(a).getReplayedAt());
+    }
+
+    @Test
+    void rowsLeftMarkedByAnInterruptedReplayAreTakenAgainAfterTheLease() {
+        String a = store("a", 1);
+        takePage(100, 100, job -> false, new ArrayList<>()); // node stopped before the job ran
+
+        long later = 100 + DeadLetters.REPLAY_LEASE_MILLIS + 1;
+        List<DeadLetters.Taken> tracked = new ArrayList<>();
+        assertEquals(1, takePage(later, later, job -> false, tracked));
+        assertEquals(a, tracked.get(0).rowId());
+        assertEquals(later, row(a).getReplayedAt());
+    }
+
+    @Test
+    void onlyOneReplayClaimsARow() {
+        String a = store("a", 1);
+        assertEquals(1, (int) db.sessions.fromTransaction(s -> DeadLetters.claim(s, a, 0, 100)));
+        assertEquals(0, (int) db.sessions.fromTransaction(s -> DeadLetters.claim(s, a, 0, 101)), "read before the first claim");
+        assertEquals(100, row(a).getReplayedAt());
+    }
+
+    @Test
+    void rowsMovedToTheOutboxAreRemovedInTheSameTransaction() {
+        String a = store("a", 1);
+        List<ScimJob> moved = new ArrayList<>();
+        List<DeadLetters.Taken> tracked = new ArrayList<>();
+
+        assertEquals(1, takePage(100, 100, moved::add, tracked));
+        assertEquals(1, moved.size());
+        assertTrue(tracked.isEmpty());
+        assertNull(row(a));
+    }
+
+    @Test
+    void rowsOfARemovedTargetAreKept() {
+        String a = store("a", 1);
+
+        assertEquals(0, takePage(100, 100, job -> null, job -> false, new ArrayList<>()));
+        assertEquals(0, row(a).getReplayedAt());
+    }
+
+    @Test
+    void entityKeepsStatusAndExcerptOfTheFailure() {
+        ScimDeadLetterEntity d = row(store("a", 1));
+        assertEquals(400, d.getStatus());
+        assertEquals("HTTP 400", d.getReason());
+        assertEquals("{\"detail\":\"bad\"}", d.getResponseExcerpt());
+        assertEquals("a", JobCodec.fromBytes(java.util.Base64.getDecoder().decode(d.getPayload())).userId());
+    }
+}
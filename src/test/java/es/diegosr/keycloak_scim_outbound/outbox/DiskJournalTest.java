@@ -0,0 +1,99 @@
+package es.diegosr.keycloak_scim_outbound.outbox;
+
+import es.diegosr.keycloak_scim_outbound.dispatch.ScimJob;
+import es.diegosr.keycloak_scim_outbound.util.ScimUser;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DiskJournalTest {
+    @TempDir
+    Path dir;
+
+    private static ScimJob job(String userId, String email) {
+        return new ScimJob(ScimJob.Action.UPDATE, "UPDATE", "realm", "Realm", "target", "Target", null,
+                userId, userId, null, new ScimUser(userId, "Given", "Family", email, true));
+    }
+
+    private List<Path> segments() throws IOException {
+        try (Stream<Path> s = Files.list(dir)) {
+            return s.filter(p -> p.getFileName().toString().endsWith(".wal")).sorted().toList();
+        }
+    }
+
+    @Test
+    void unacknowledgedJobsAreRecovered() throws Exception {
+        try (DiskJournal journal = new DiskJournal(dir)) {
+            long a = journal.append("k:a", job("a", "a1@x"));
+            journal.append("k:b", job("b", "b1@x"));
+            journal.append("k:a", job("a", "a2@x"));
+            journal.ack("k:a", a); // only the first job of "a" is done
+            journal.flushed().get();
+        }
+
+        try (DiskJournal journal = new DiskJournal(dir)) {
+            List<ScimJob> left = journal.recovered();
+            assertEquals(2, left.size());
+            assertEquals("b1@x", left.get(0).user().email());
+            assertEquals("a2@x", left.get(1).user().email());
+            assertNull(left.get(0).endpoint(), "endpoint (token) is never journaled");
+        }
+    }
+
+    @Test
+    void ackCoversEverySequenceUpToIt() throws Exception {
+        try (DiskJournal journal = new DiskJournal(dir)) {
+            journal.append("k:a", job("a", "a1@x"));
+            long last = journal.append("k:a", job("a", "a2@x"));
+            journal.ack("k:a", last); // coalesced: the newest ack covers the older job too
+            journal.flushed().get();
+        }
+        try (DiskJournal journal = new DiskJournal(dir)) {
+            assertTrue(journal.recovered().isEmpty());
+        }
+    }
+
+    @Test
+    void compactDeletesSegmentsOfThePreviousRun() throws Exception {
+        try (DiskJournal journal = new DiskJournal(dir)) {
+            journal.append("k:a", job("a", "a1@x"));
+            journal.flushed().get();
+        }
+        List<Path> before = segments();
+        assertEquals(1, before.size());
+
+        try (DiskJournal journal = new DiskJournal(dir)) {
+            assertEquals(1, journal.recovered().size());
+            journal.append("k:a", journal.recovered().get(0));
+            journal.flushed().get();
+            journal.compact();
+            assertTrue(journal.recovered().isEmpty());
+            assertFalse(Files.exists(before.get(0)), "old segment deleted");
+        }
+        try (DiskJournal journal = new DiskJournal(dir)) {
+            assertEquals(1, journal.recovered().size(), "re-appended job survives compaction");
+        }
+    }
+
+    @Test
+    void tornTailIsIgnored() throws Exception {
+        try (DiskJournal journal = new DiskJournal(dir)) {
+            journal.append("k:a", job("a", "a1@x"));
+            journal.flushed().get();
+        }
+        Path seg = segments().get(0);
+        Files.write(seg, new byte[] {0, 0, 0, 42, 1, 2}, java.nio.file.StandardOpenOption.APPEND);
+
+        try (DiskJournal journal = new DiskJournal(dir)) {
+            assertEquals(1, journal.recovered().size());
+        }
+    }
+}
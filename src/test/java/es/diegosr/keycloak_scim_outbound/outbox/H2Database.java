@@ -0,0 +1,38 @@
+package es.diegosr.keycloak_scim_outbound.outbox;
+
+import org.hibernate.SessionFactory;
+import org.hibernate.cfg.Configuration;
+
+/**
+ * In-memory H2 database (the Keycloak dev database) holding the outbox and dead-letter tables,
+ * mapped by Hibernate as Keycloak does. Each instance is a fresh database; {@link #clear()} empties it.
+ */
+final class H2Database implements AutoCloseable {
+    private static int seq;
+
+    final SessionFactory sessions;
+
+    H2Database() {
+        String name;
+        synchronized (H2Database.class) { name = "scim" + (++seq); }
+        sessions = new Configuration()
+                .addAnnotatedClass(ScimOutboxEntity.class)
+                .addAnnotatedClass(ScimDeadLetterEntity.class)
+                .setProperty("hibernate.connection.url", "jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1")
+                .setProperty("hibernate.connection.pool_size", "4")
+                .setProperty("hibernate.hbm2ddl.auto", "create-drop")
+                .buildSessionFactory();
+    }
+
+    void clear() {
+        sessions.inTransaction(s -> {
+            s.createMutationQuery("delete from ScimOutboxEntity").executeUpdate();
+            s.createMutationQuery("delete from ScimDeadLetterEntity").executeUpdate();
+        });
+    }
+
+    @Override
+    public void close() {
+        sessions.close();
+    }
+}
@@ -0,0 +1,63 @@
+package es.diegosr.keycloak_scim_outbound.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ExpiringCacheTest {
+
+    @Test
+    void entriesExpireAfterTtl() throws InterruptedException {
+        ExpiringCache<String, String> cache = new ExpiringCache<>(10, Duration.ofMillis(50));
+        cache.put("k", "v");
+        assertEquals("v", cache.get("k"));
+        Thread.sleep(80);
+        assertNull(cache.get("k"));
+    }
+
+    @Test
+    void putRefreshesTtl() throws InterruptedException {
+        ExpiringCache<String, String> cache = new ExpiringCache<>(10, Duration.ofMillis(100));
+        cache.put("k", "v1");
+        Thread.sleep(60);
+        cache.put("k", "v2");
+        Thread.sleep(60);
+        assertEquals("v2", cache.get("k"));
+    }
+
+    @Test
+    void oldestEntryIsEvictedAtCapacity() {
+        ExpiringCache<String, Integer> cache = new ExpiringCache<>(2, Duration.ofMinutes(1));
+        cache.put("a", 1);
+        cache.put("b", 2);
+        cache.put("c", 3);
+        assertNull(cache.get("a"));
+        assertEquals(2, cache.get("b"));
+        assertEquals(3, cache.get("c"));
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    void putIfAbsentKeepsLiveValue() throws InterruptedException {
+        ExpiringCache<String, String> cache = new ExpiringCache<>(10, Duration.ofMillis(50));
+        assertNull(cache.putIfAbsent("k", "first"));
+        assertEquals("first", cache.putIfAbsent("k", "second"));
+        Thread.sleep(80);
+        assertNull(cache.putIfAbsent("k", "third"), "expired entry counts as absent");
+        assertEquals("third", cache.get("k"));
+    }
+
+    @Test
+    void removeValueDropsEveryKeyMappedToIt() {
+        ExpiringCache<String, String> cache = new ExpiringCache<>(10, Duration.ofMinutes(1));
+        cache.put("alice", "id-1");
+        cache.put("alice2", "id-1");
+        cache.put("bob", "id-2");
+        cache.removeValue("id-1");
+        assertNull(cache.get("alice"));
+        assertNull(cache.get("alice2"));
+        assertEquals("id-2", cache.get("bob"));
+    }
+}
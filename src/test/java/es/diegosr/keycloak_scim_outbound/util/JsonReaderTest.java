@@ -0,0 +1,126 @@
+package es.diegosr.keycloak_scim_outbound.util;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class JsonReaderTest {
+
+    @Test
+    void walksAListResponse() throws IOException {
+        JsonReader r = JsonReader.of("""
+                {"totalResults": 1, "Resources": [
+                  {"id": "abc", "active": true, "emails": [{"value": "a@b.c", "primary": false}], "x": null}
+                ], "ratio": -1.5e2}""");
+        r.beginObject();
+        assertEquals("totalResults", r.nextName());
+        assertEquals(1L, r.nextNumber());
+        assertEquals("Resources", r.nextName());
+        r.beginArray();
+        r.beginObject();
+        assertEquals("id", r.nextName());
+        assertEquals("abc", r.nextString());
+        assertEquals("active", r.nextName());
+        assertTrue(r.nextBoolean());
+        assertEquals("emails", r.nextName());
+        r.skipValue();
+        assertEquals("x", r.nextName());
+        assertEquals(JsonReader.Token.NULL, r.peek());
+        r.nextNull();
+        assertFalse(r.hasNext());
+        r.endObject();
+        assertFalse(r.hasNext());
+        r.endArray();
+        assertEquals("ratio", r.nextName());
+        assertEquals(-150.0, r.nextNumber());
+        r.endObject();
+        assertEquals(JsonReader.Token.END_DOCUMENT, r.peek());
+    }
+
+    @Test
+    void emptyContainers() throws IOException {
+        JsonReader r = JsonReader.of(" { \"a\" : [ ] , \"b\" : { } } ");
+        r.beginObject();
+        assertEquals("a", r.nextName());
+        r.beginArray();
+        assertFalse(r.hasNext());
+        r.endArray();
+        assertEquals("b", r.nextName());
+        r.beginObject();
+        assertFalse(r.hasNext());
+        r.endObject();
+        r.endObject();
+        assertEquals(JsonReader.Token.END_DOCUMENT, r.peek());
+    }
+
+    @Test
+    void decodesEscapes() throws IOException {
+        JsonReader r = JsonReader.of("\"q\\\" b\\\\ s\\/ \\b\\f\\n\\r\\t \\u00e9\\u20AC\"");
+        assertEquals("q\" b\\ s/ \b\f\n\r\t é€", r.nextString());
+    }
+
+    @Test
+    void readsStringsAcrossBufferRefills() throws IOException {
+        String longValue = "x".repeat(5000) + "\\n" + "y".repeat(3000);
+        JsonReader r = JsonReader.of("[\"" + longValue + "\", 42]");
+        r.beginArray();
+        assertEquals("x".repeat(5000) + "\n" + "y".repeat(3000), r.nextString());
+        assertEquals(42L, r.nextNumber());
+        r.endArray();
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "",
+            "{",
+            "[",
+            "{\"Resources\":[",
+            "{\"Resources\":[ ",
+            "{\"Resources\":[{",
+            "{\"id\"",
+            "{\"id\":",
+            "{\"id\":\"abc",
+            "{\"id\":\"a\\u00",
+            "[tr",
+            "[nul",
+            "[1,",
+    })
+    void truncatedInputIsRejected(String json) {
+        assertThrows(IllegalArgumentException.class, () -> JsonReader.of(json).skipValue());
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "{id: 1}",
+            "{\"id\" 1}",
+            "{\"a\":1 \"b\":2}",
+            "[1 2]",
+            "[1,]x",
+            "[@]",
+            "\"bad \\q escape\"",
+            "\"\\u12G4\"",
+            "[truth]",
+            "[1.2.3]",
+            "{} {}",
+    })
+    void malformedInputIsRejected(String json) {
+        assertThrows(IllegalArgumentException.class, () -> {
+            JsonReader r = JsonReader.of(json);
+            r.skipValue();
+            r.peek();
+        });
+    }
+
+    @Test
+    void wrongTokenIsRejected() throws IOException {
+        JsonReader r = JsonReader.of("{\"id\": 5}");
+        r.beginObject();
+        r.nextName();
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class, r::nextString);
+        assertTrue(e.getMessage().contains("expected STRING but was NUMBER"), e.getMessage());
+    }
+}
@@ -0,0 +1,75 @@
+package es.diegosr.keycloak_scim_outbound.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class JsonWriterTest {
+
+    private static String json(JsonWriter w) {
+        return new String(w.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void commasAndColonsAreInsertedWhereNeeded() {
+        JsonWriter w = new JsonWriter(16).beginObject()
+                .field("a", "x")
+                .name("b").beginArray().value(1).value(true).nullValue().beginObject().endObject().endArray()
+                .name("c").beginArray().endArray()
+                .field("d", false)
+                .endObject();
+        assertEquals("{\"a\":\"x\",\"b\":[1,true,null,{}],\"c\":[],\"d\":false}", json(w));
+    }
+
+    @Test
+    void escapesEverythingRfc8259Requires() {
+        String s = json(new JsonWriter(4).value("q\" b\\ \b\f\n\r\t \u0001 \u001f"));
+        assertEquals("\"q\\\" b\\\\ \\b\\f\\n\\r\\t \\u0001 \\u001f\"", s);
+    }
+
+    @Test
+    void encodesUtf8AndEscapesUnpairedSurrogates() {
+        JsonWriter w = new JsonWriter(4).beginArray().value("Ñ€😀").value("a\ud800b").endArray();
+        assertArrayEquals("[\"Ñ€😀\",\"a\\ud800b\"]".getBytes(StandardCharsets.UTF_8), w.toByteArray());
+    }
+
+    @Test
+    void rawValuesAreCopiedAsIs() {
+        JsonWriter w = new JsonWriter(16).beginArray().rawValue("{\"x\":1}".getBytes(StandardCharsets.UTF_8)).value("y").endArray();
+        assertEquals("[{\"x\":1},\"y\"]", json(w));
+    }
+
+    @Test
+    void pooledWriterStartsEmpty() {
+        JsonWriter.pooled().beginObject().field("a", "b");
+        JsonWriter w = JsonWriter.pooled();
+        assertEquals(0, w.size());
+        assertEquals("[]", json(w.beginArray().endArray()));
+    }
+
+    @Test
+    void mapperPayloadsAreValidJsonWithAnyInput() throws IOException {
+        ScimUser user = new ScimUser("a\"b", "line\nbreak", null, "tab\t@x", true);
+        JsonReader r = JsonReader.of(new String(ScimMapper.buildCreateUser(user), StandardCharsets.UTF_8));
+        r.beginObject();
+        assertEquals("schemas", r.nextName());
+        r.skipValue();
+        assertEquals("userName", r.nextName());
+        assertEquals("a\"b", r.nextString());
+        assertEquals("name", r.nextName());
+        r.beginObject();
+        assertEquals("givenName", r.nextName());
+        assertEquals("line\nbreak", r.nextString());
+        assertEquals("familyName", r.nextName());
+        assertEquals("", r.nextString());
+        r.endObject();
+        assertEquals("emails", r.nextName());
+        r.skipValue();
+        assertEquals("active", r.nextName());
+        assertTrue(r.nextBoolean());
+        r.endObject();
+    }
+}
@@ -0,0 +1,80 @@
+package es.diegosr.keycloak_scim_outbound.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Request bodies built by {@link ScimMapper} (pooled UTF-8 {@link JsonWriter}) vs. the
+ * {@code String.formatted} text blocks it replaced, encoded to UTF-8 as the HTTP client needs.
+ * The template baseline is kept here as it was, including its partial escaping.
+ *
+ * Run with {@code mvn -Pbench test-compile exec:exec -Djmh.args="ScimMapperBenchmark -prof gc"};
+ * {@code -prof gc} reports the bytes allocated per payload.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ScimMapperBenchmark {
+    private final ScimUser user = new ScimUser("alice.liddell", "Alice", "Liddell-Ñúñez", "alice.liddell@example.com", true);
+
+    @Benchmark
+    public byte[] createWriter() {
+        return ScimMapper.buildCreateUser(user);
+    }
+
+    @Benchmark
+    public byte[] createTemplate() {
+        return templateCreate(user).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public byte[] patchWriter() {
+        return ScimMapper.buildPatchUser(user);
+    }
+
+    @Benchmark
+    public byte[] patchTemplate() {
+        return templatePatch(user).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /* ===== previous ScimMapper ===== */
+
+    static String templateCreate(ScimUser user) {
+        return """
+            {
+              "schemas": ["urn:ietf:params:scim:schemas:core:2.0:User"],
+              "userName": "%s",
+              "name": { "givenName": "%s", "familyName": "%s" },
+              "emails": [ { "value": "%s", "type": "work", "primary": true } ],
+              "active": %s
+            }
+            """.formatted(esc(user.userName()), esc(user.givenName()), esc(user.familyName()), esc(user.email()),
+                user.active() ? "true" : "false");
+    }
+
+    static String templatePatch(ScimUser user) {
+        return """
+            {
+              "schemas": ["urn:ietf:params:scim:api:messages:2.0:PatchOp"],
+              "Operations": [
+                {"op":"replace","path":"name.givenName","value":"%s"},
+                {"op":"replace","path":"name.familyName","value":"%s"},
+                {"op":"replace","path":"emails[primary eq true].value","value":"%s"},
+                {"op":"replace","path":"active","value":%s}
+              ]
+            }
+            """.formatted(esc(user.givenName()), esc(user.familyName()), esc(user.email()), user.active() ? "true" : "false");
+    }
+
+    private static String esc(String s) {
+        if (s == null) return "";
+        return s.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+}
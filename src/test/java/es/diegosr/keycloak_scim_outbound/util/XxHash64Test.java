@@ -0,0 +1,42 @@
+package es.diegosr.keycloak_scim_outbound.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/** Reference values of XXH64 with seed 0. */
+class XxHash64Test {
+
+    private static long hash(String s) {
+        return XxHash64.hash(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void knownVectors() {
+        assertEquals(0xef46db3751d8e999L, hash(""));
+        assertEquals(0x44bc2cf5ad770999L, hash("abc"));
+        // 43 bytes: one 32-byte stripe, then 8-, 1-byte tails
+        assertEquals(0x0b242d361fda71bcL, hash("The quick brown fox jumps over the lazy dog"));
+    }
+
+    @Test
+    void everyTailLength() {
+        byte[] data = new byte[100];
+        for (int i = 0; i < data.length; i++) data[i] = (byte) i;
+        // 3 stripes, one 4-byte tail
+        assertEquals(0x6ac1e58032166597L, XxHash64.hash(data));
+    }
+
+    @Test
+    void sensitiveToEveryByte() {
+        byte[] a = "{\"userName\":\"alice\",\"active\":true}".getBytes(StandardCharsets.UTF_8);
+        long h = XxHash64.hash(a);
+        for (int i = 0; i < a.length; i++) {
+            byte[] b = a.clone();
+            b[i] ^= 1;
+            assertNotEquals(h, XxHash64.hash(b), "flip at " + i);
+        }
+    }
+}